@@ -27,6 +27,8 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
 
@@ -56,9 +58,50 @@ public class AboutFragment extends PageFragment
         view.findViewById( R.id.qrcode )
             .setVisibility( BuildConfig.SHOW_INSTALL_QR ? View.VISIBLE : View.GONE );
 
+        // The log's wanted most from release builds in the field
+        view.findViewById( R.id.log_save ).setOnClickListener( this );
+        if ( BuildConfig.DEBUG ) {
+            view.findViewById( R.id.debug_metrics ).setVisibility( View.VISIBLE );
+            for ( int id : new int[] { R.id.metrics_refresh, R.id.metrics_copy } ) {
+                view.findViewById( id ).setOnClickListener( this );
+            }
+            showMetrics( view, null );
+        }
+
         return view;
     }
 
+    private void showMetrics( View view, String status )
+    {
+        String text = Metrics.describe();
+        if ( 0 == text.length() ) {
+            text = getString( R.string.metrics_none );
+        }
+        if ( null != status ) {
+            text = status + "\n\n" + text;
+        }
+        ((TextView)view.findViewById( R.id.metrics_text )).setText( text );
+    }
+
+    private String saveLog()
+    {
+        Context context = getContext();
+        File dir = context.getExternalFilesDir( null );
+        if ( null == dir ) {
+            dir = context.getFilesDir();
+        }
+        File file = new File( dir, "log.txt" );
+        String result;
+        try {
+            Log.dumpTo( file );
+            result = getString( R.string.log_saved_fmt, file.getPath() );
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "saveLog(): %s", ioe );
+            result = ioe.getMessage();
+        }
+        return result;
+    }
+
     @Override
     public void onClick(View view)
     {
@@ -67,6 +110,16 @@ public class AboutFragment extends PageFragment
         case R.id.uninstall:
             MainActivity.uninstall(getActivity());
             break;
+        case R.id.metrics_refresh:
+            showMetrics( getView(), null );
+            break;
+        case R.id.metrics_copy:
+            Clip.setData( getContext(), "application/json", TAG, Metrics.toJson() );
+            showMetrics( getView(), getString( R.string.metrics_copied ) );
+            break;
+        case R.id.log_save:
+            ((TextView)getView().findViewById( R.id.log_text )).setText( saveLog() );
+            break;
         default:
             assert false;
         }
@@ -0,0 +1,172 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Chooses how big a VERSION_2 APDU to build. Candidate sizes double from a
+// floor that's known to work up to what the link reports. We start at
+// whatever did best with this peer last time, time every APDU, and every
+// SAMPLE APDUs move to a neighboring size if it's been (or may be) faster.
+// A failure at a size that's never worked pushes us down, and a size that
+// keeps failing that way is given up on. Once a size has worked, a failure
+// there is taken to be the phones moving apart.
+class ApduSizer {
+    private static final String TAG = ApduSizer.class.getSimpleName();
+    private static final String PREFS_NAME = TAG;
+    // APDUs to time at a size before deciding whether to move
+    private static final int SAMPLE = 8;
+    // Failures at a never-worked size before it's not tried again
+    private static final int MAX_FAILURES = 2;
+
+    private int[] mSizes;       // ascending
+    private float[] mRates;     // bytes/ms, smoothed; 0 if never measured
+    private int[] mFailures;
+    private boolean[] mWorked;
+    private int mCur;
+    private int mCeiling;       // first index not to try
+    private long mSampleBytes;
+    private long mSampleNanos;
+    private int mSampleCount;
+
+    ApduSizer( int floor, int linkMax, boolean extendedSupported )
+    {
+        // Without extended-length support don't trust linkMax beyond floor
+        int max = extendedSupported ? linkMax : Math.min( floor, linkMax );
+        List<Integer> sizes = new ArrayList<>();
+        for ( int size = Math.min( floor, max ); ; size *= 2 ) {
+            if ( size >= max ) {
+                sizes.add( max );
+                break;
+            }
+            sizes.add( size );
+        }
+
+        mSizes = new int[sizes.size()];
+        for ( int ii = 0; ii < mSizes.length; ++ii ) {
+            mSizes[ii] = sizes.get( ii );
+        }
+        mRates = new float[mSizes.length];
+        mFailures = new int[mSizes.length];
+        mWorked = new boolean[mSizes.length];
+        mCeiling = mSizes.length;
+    }
+
+    // Start at the biggest candidate no bigger than size
+    void startAt( int size )
+    {
+        mCur = 0;
+        while ( mCur + 1 < mCeiling && mSizes[mCur + 1] <= size ) {
+            ++mCur;
+        }
+        resetSample();
+        Log.d( TAG, "startAt(%d): using %d", size, getSize() );
+    }
+
+    int getSize() { return mSizes[mCur]; }
+
+    // Fastest size measured so far
+    int getBest()
+    {
+        int best = mCur;
+        for ( int ii = 0; ii < mCeiling; ++ii ) {
+            if ( mRates[ii] > mRates[best] ) {
+                best = ii;
+            }
+        }
+        return mSizes[best];
+    }
+
+    void onSuccess( int apduLen, long nanos )
+    {
+        mWorked[mCur] = true;
+        mSampleBytes += apduLen;
+        mSampleNanos += nanos;
+        if ( ++mSampleCount == SAMPLE ) {
+            float rate = mSampleBytes * 1000000f / Math.max( 1, mSampleNanos );
+            mRates[mCur] = 0 == mRates[mCur] ? rate : (mRates[mCur] + rate) / 2;
+            resetSample();
+            adjust();
+        }
+    }
+
+    void onFailure( int apduLen )
+    {
+        if ( apduLen > mSizes[0] && !mWorked[mCur] ) {
+            if ( ++mFailures[mCur] >= MAX_FAILURES ) {
+                mCeiling = Math.max( 1, mCur );
+            }
+            if ( 0 < mCur ) {
+                --mCur;
+            }
+            Log.d( TAG, "onFailure(%d): now using %d", apduLen, getSize() );
+        }
+        resetSample();
+    }
+
+    private void adjust()
+    {
+        int up = mCur + 1;
+        int down = mCur - 1;
+        if ( up < mCeiling && (0 == mRates[up] || mRates[up] > mRates[mCur]) ) {
+            mCur = up;
+        } else if ( 0 <= down && mRates[down] > mRates[mCur] ) {
+            mCur = down;
+        }
+        Log.d( TAG, "adjust(): using %d (%.1f bytes/ms)", getSize(), mRates[mCur] );
+    }
+
+    private void resetSample()
+    {
+        mSampleBytes = mSampleNanos = mSampleCount = 0;
+    }
+
+    static int load( Context context, int peerId )
+    {
+        int result = 0;
+        SharedPreferences prefs = getPrefs( context );
+        if ( null != prefs ) {
+            result = prefs.getInt( keyFor( peerId ), 0 );
+        }
+        return result;
+    }
+
+    static void save( Context context, int peerId, int size )
+    {
+        SharedPreferences prefs = getPrefs( context );
+        if ( null != prefs ) {
+            prefs.edit().putInt( keyFor( peerId ), size ).apply();
+        }
+    }
+
+    private static SharedPreferences getPrefs( Context context )
+    {
+        return null == context ? null
+            : context.getSharedPreferences( PREFS_NAME, Context.MODE_PRIVATE );
+    }
+
+    private static String keyFor( int peerId )
+    {
+        return String.format( "%08x", peerId );
+    }
+}
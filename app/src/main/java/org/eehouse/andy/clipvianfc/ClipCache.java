@@ -0,0 +1,315 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Partial clips, kept so an interrupted transfer can resume. Small ones
+// live in memory until their receiver's closed; big ones, and any whose
+// receiver's gone, are spilled to files in the cache dir. A journal there
+// lists the spilled ones, most recently used last, so they outlive the
+// process. Entries not used for TTL_MS are dropped, as are the least
+// recently used when over budget.
+class ClipCache {
+    private static final String TAG = ClipCache.class.getSimpleName();
+    private static final String DIR_NAME = "clips";
+    private static final String JOURNAL_NAME = "journal";
+    private static final int SPILL_LEN = 64 * 1024;
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+    private static final long TTL_MS = 24 * 60 * 60 * 1000;
+
+    private static ClipCache sInstance;
+
+    private File mDir;
+    private File mJournal;
+    // In access order, so the eldest is the least recently used
+    private LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>( 16, 0.75f, true );
+
+    static class Entry {
+        private String mSum;
+        private File mFile;
+        private ByteArrayOutputStream mMemory;   // until spilled
+        private FileOutputStream mOut;          // after, while in use
+        private long mLen;
+        private long mLastUsed;
+
+        private Entry( String sum, File file )
+        {
+            mSum = sum;
+            mFile = file;
+            if ( file.exists() ) {
+                mLen = file.length();
+                mLastUsed = file.lastModified();
+            } else {
+                mMemory = new ByteArrayOutputStream();
+                mLastUsed = System.currentTimeMillis();
+            }
+        }
+
+        synchronized long size() { return mLen; }
+
+        synchronized void append( byte[] buf, int offset, int len ) throws IOException
+        {
+            if ( null != mMemory && SPILL_LEN < mLen + len ) {
+                spill();
+            }
+            if ( null != mMemory ) {
+                mMemory.write( buf, offset, len );
+            } else {
+                if ( null == mOut ) {
+                    mOut = new FileOutputStream( mFile, true );
+                }
+                mOut.write( buf, offset, len );
+            }
+            mLen += len;
+            mLastUsed = System.currentTimeMillis();
+        }
+
+        // Everything appended so far, to be read once
+        synchronized InputStream openStream() throws IOException
+        {
+            InputStream result;
+            if ( null != mMemory ) {
+                result = new ByteArrayInputStream( mMemory.toByteArray() );
+            } else {
+                closeOut();
+                result = new BufferedInputStream( new FileInputStream( mFile ) );
+            }
+            return result;
+        }
+
+        // Move to disk; true if it wasn't there already
+        private synchronized boolean spill() throws IOException
+        {
+            boolean result = null != mMemory;
+            if ( result ) {
+                FileOutputStream fos = new FileOutputStream( mFile );
+                try {
+                    mMemory.writeTo( fos );
+                } finally {
+                    fos.close();
+                }
+                mMemory = null;
+            }
+            return result;
+        }
+
+        private synchronized void closeOut() throws IOException
+        {
+            if ( null != mOut ) {
+                mOut.close();
+                mOut = null;
+            }
+        }
+
+        private synchronized long lastUsed() { return mLastUsed; }
+        private synchronized boolean spilled() { return null == mMemory; }
+
+        private synchronized void delete()
+        {
+            try {
+                closeOut();
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "delete(): %s", ioe );
+            }
+            mMemory = null;
+            mFile.delete();
+        }
+    }
+
+    static ClipCache get( Context context )
+    {
+        synchronized ( ClipCache.class ) {
+            if ( null == sInstance ) {
+                sInstance = new ClipCache( new File( context.getCacheDir(), DIR_NAME ) );
+            }
+            return sInstance;
+        }
+    }
+
+    private ClipCache( File dir )
+    {
+        mDir = dir;
+        mDir.mkdirs();
+        mJournal = new File( mDir, JOURNAL_NAME );
+        load();
+    }
+
+    // The entry for sum, made empty if there isn't one
+    Entry open( String sum )
+    {
+        Entry result;
+        synchronized ( mEntries ) {
+            result = mEntries.get( sum );
+            if ( null == result ) {
+                result = new Entry( sum, new File( mDir, sum ) );
+                mEntries.put( sum, result );
+            }
+            trim( result );
+        }
+        return result;
+    }
+
+    // The entry's receiver is done with it, but it may be resumed later
+    void release( Entry entry )
+    {
+        try {
+            entry.closeOut();
+            if ( entry.spill() ) {
+                synchronized ( mEntries ) {
+                    writeJournal();
+                }
+            }
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "release(): %s", ioe );
+        }
+    }
+
+    void remove( String sum )
+    {
+        synchronized ( mEntries ) {
+            Entry entry = mEntries.remove( sum );
+            if ( null != entry ) {
+                entry.delete();
+                writeJournal();
+            }
+        }
+    }
+
+    // Drop what's expired, then the least recently used until under
+    // budget, sparing keep
+    private void trim( Entry keep )
+    {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for ( Entry entry : mEntries.values() ) {
+            total += entry.size();
+        }
+
+        boolean changed = false;
+        Iterator<Entry> iter = mEntries.values().iterator();
+        while ( iter.hasNext() ) {
+            Entry entry = iter.next();
+            if ( entry != keep
+                 && (MAX_BYTES < total || TTL_MS < now - entry.lastUsed()) ) {
+                Log.d( TAG, "trim(): dropping %s (%d bytes)", entry.mSum, entry.size() );
+                total -= entry.size();
+                changed = changed || entry.spilled();
+                entry.delete();
+                iter.remove();
+            }
+        }
+        if ( changed ) {
+            writeJournal();
+        }
+    }
+
+    // One line per spilled entry: sum, then time last used
+    private void writeJournal()
+    {
+        File tmp = new File( mDir, JOURNAL_NAME + ".tmp" );
+        try {
+            PrintWriter pw = new PrintWriter( new FileWriter( tmp ) );
+            for ( Entry entry : mEntries.values() ) {
+                if ( entry.spilled() ) {
+                    pw.println( entry.mSum + " " + entry.lastUsed() );
+                }
+            }
+            pw.close();
+            if ( !tmp.renameTo( mJournal ) ) {
+                Log.e( TAG, "writeJournal(): rename failed" );
+            }
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "writeJournal(): %s", ioe );
+        }
+    }
+
+    // Files the journal doesn't know about (e.g. spilled just before the
+    // process died) are kept too, ordered by when they were written to.
+    private void load()
+    {
+        Map<String, Long> journaled = new LinkedHashMap<>();
+        try {
+            if ( mJournal.exists() ) {
+                BufferedReader reader = new BufferedReader( new FileReader( mJournal ) );
+                for ( String line = reader.readLine(); null != line;
+                      line = reader.readLine() ) {
+                    String[] parts = line.split( " " );
+                    if ( 2 == parts.length ) {
+                        journaled.put( parts[0], Long.parseLong( parts[1] ) );
+                    }
+                }
+                reader.close();
+            }
+        } catch ( IOException | NumberFormatException ex ) {
+            Log.e( TAG, "load(): %s", ex );
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        File[] files = mDir.listFiles();
+        if ( null == files ) {
+            Log.e( TAG, "load(): got nothing from %s", mDir );
+        } else {
+            for ( File file : files ) {
+                String name = file.getName();
+                if ( !name.startsWith( JOURNAL_NAME ) ) {
+                    Entry entry = new Entry( name, file );
+                    Long lastUsed = journaled.get( name );
+                    if ( null != lastUsed ) {
+                        entry.mLastUsed = Math.max( lastUsed, entry.mLastUsed );
+                    }
+                    entries.add( entry );
+                }
+            }
+        }
+        // Oldest first, as access order would have it
+        Collections.sort( entries, new Comparator<Entry>() {
+                @Override
+                public int compare( Entry one, Entry two ) {
+                    return Long.compare( one.mLastUsed, two.mLastUsed );
+                }
+            } );
+        for ( Entry entry : entries ) {
+            mEntries.put( entry.mSum, entry );
+        }
+        Log.d( TAG, "load(): found %d partial clips", entries.size() );
+        trim( null );
+        writeJournal();
+    }
+}
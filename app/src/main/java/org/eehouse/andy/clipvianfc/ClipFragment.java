@@ -30,13 +30,19 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.method.ScrollingMovementMethod;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewTreeObserver;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.ListView;
 import android.widget.ProgressBar;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -45,12 +51,12 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
-import android.widget.ListAdapter;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ClipFragment extends PageFragment
     implements View.OnClickListener,
@@ -62,6 +68,7 @@ public class ClipFragment extends PageFragment
     private ClipData.Item mClipData;
     private String[] mType = {null};
     private String[] mLabel = {null};
+    private List<File> mChosen = new ArrayList<>(); // what file_send sends
 
     @Override
     public void onResume() {
@@ -113,11 +120,11 @@ public class ClipFragment extends PageFragment
             break;
 
         case R.id.file_send:
-            TextView tv = (TextView)mParentView.findViewById(R.id.chosen_file);
-            String desc = tv.getText().toString();
-            File file = FilePickDialogFragment.getForDesc( desc );
-            if ( null != file ) {
-                NFCUtils.sendFile( getActivity(), this, file );
+            // More than one go together, in the same taps
+            if ( 1 == mChosen.size() ) {
+                NFCUtils.sendFile( getActivity(), this, mChosen.get( 0 ) );
+            } else if ( 1 < mChosen.size() ) {
+                NFCUtils.sendFiles( getActivity(), this, mChosen );
             }
             break;
         case R.id.file_choose:
@@ -245,20 +252,53 @@ public class ClipFragment extends PageFragment
         if ( haveReadPermission() ) {
             new FilePickDialogFragment( new FilePickDialogFragment.ItemSelProc() {
                     @Override
-                    public void onItemSelected( String item ) {
+                    public void onItemsSelected( List<File> files ) {
+                        mChosen = files;
+                        List<String> names = new ArrayList<>();
+                        for ( File file : files ) {
+                            names.add( file.getName() );
+                        }
                         TextView view = (TextView)mParentView.findViewById(R.id.chosen_file);
-                        view.setText( item );
+                        view.setText( TextUtils.join( "\n", names ) );
                     }
                 } ).show( getFragmentManager(), "NoticeDialogFragment");
         }
     }
 
-    public static class FilePickDialogFragment extends DialogFragment {
+    // Shows what FileIndex knows about, paged into the list a bit at a
+    // time so a big directory doesn't hold up the UI thread, and redone
+    // whenever the index changes or the sort does
+    public static class FilePickDialogFragment extends DialogFragment
+        implements FileIndex.Listener {
+        private static final int PAGE_SIZE = 100;
 
         interface ItemSelProc {
-            void onItemSelected( String item );
+            void onItemsSelected( List<File> files );
         }
         ItemSelProc mProc;
+        private FileIndex mIndex;
+        private int mSort = FileIndex.SORT_NAME;
+        private Handler mHandler;
+        private ArrayAdapter<String> mAdapter;
+        private ListView mList;
+        private TextView mStatus;
+        private List<FileIndex.Entry> mEntries = new ArrayList<>();
+        private int mNextPage;
+        private Set<String> mChecked = new HashSet<>(); // by name
+
+        private Runnable mReloadProc = new Runnable() {
+                @Override
+                public void run() {
+                    reload();
+                }
+            };
+
+        private Runnable mPageProc = new Runnable() {
+                @Override
+                public void run() {
+                    addPage();
+                }
+            };
 
         public FilePickDialogFragment( ItemSelProc proc )
         {
@@ -269,77 +309,126 @@ public class ClipFragment extends PageFragment
         @Override
         public Dialog onCreateDialog(Bundle savedInstanceState )
         {
-            final ListAdapter adapter = listFiles();
+            mHandler = new Handler( Looper.getMainLooper() );
+            View view = LayoutInflater.from( getActivity() )
+                .inflate( R.layout.file_picker, null );
+            mStatus = (TextView)view.findViewById( R.id.file_status );
+            mAdapter = new ArrayAdapter<>( getActivity(),
+                                           android.R.layout.simple_list_item_multiple_choice );
+            mList = (ListView)view.findViewById( R.id.file_list );
+            mList.setAdapter( mAdapter );
+            mList.setOnItemClickListener( new AdapterView.OnItemClickListener() {
+                    @Override
+                    public void onItemClick( AdapterView<?> parent, View item,
+                                             int position, long id ) {
+                        String name = mEntries.get( position ).getName();
+                        if ( mList.isItemChecked( position ) ) {
+                            mChecked.add( name );
+                        } else {
+                            mChecked.remove( name );
+                        }
+                    }
+                } );
+
+            RadioGroup sorts = (RadioGroup)view.findViewById( R.id.file_sort );
+            sorts.check( R.id.file_sort_name );
+            sorts.setOnCheckedChangeListener( new RadioGroup.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged( RadioGroup group, int checkedId ) {
+                        switch ( checkedId ) {
+                        case R.id.file_sort_size:
+                            mSort = FileIndex.SORT_SIZE;
+                            break;
+                        case R.id.file_sort_date:
+                            mSort = FileIndex.SORT_DATE;
+                            break;
+                        default:
+                            mSort = FileIndex.SORT_NAME;
+                            break;
+                        }
+                        reload();
+                    }
+                } );
+
+            mIndex = FileIndex.get();
+            mIndex.setListener( this );
+            reload();
+
             // Use the Builder class for convenient dialog construction
-            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
-            if ( 0 == adapter.getCount() ) {
-                builder.setMessage( R.string.no_files_found )
-                    .setPositiveButton( android.R.string.ok, null )
-                    ;
-            } else {
-                builder
-                    .setAdapter( adapter, new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick( DialogInterface dialogInterface, int ii ) {
-                                String item = (String)adapter.getItem(ii);
-                                mProc.onItemSelected( item );
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity())
+                .setView( view )
+                .setPositiveButton( android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick( DialogInterface dialogInterface, int ii ) {
+                            // In the order shown, and only those still there
+                            List<File> files = new ArrayList<>();
+                            for ( FileIndex.Entry entry : mEntries ) {
+                                if ( mChecked.contains( entry.getName() ) ) {
+                                    files.add( new File( getFilesDir(), entry.getName() ) );
+                                }
                             }
-                        })
-                    .setNegativeButton( android.R.string.cancel, null )
-                    ;
-            }
+                            mProc.onItemsSelected( files );
+                        }
+                    })
+                .setNegativeButton( android.R.string.cancel, null )
+                ;
 
             return builder.create();
         }
 
-        public static File getForDesc( String desc )
+        @Override
+        public void onDismiss( DialogInterface dialog )
         {
-            Log.d( TAG, "getForDesc(%s)", desc );
-            File result = null;
-            String[] parts = TextUtils.split( desc, ":" );
-            if ( 2 <= parts.length ) {
-                String[] pathParts = Arrays.copyOfRange( parts, 0, parts.length - 1 );
-                String name = TextUtils.join(":", pathParts );
-                File dir = getFilesDir();
-                result = new File( dir, name );
-                Log.d( TAG, "getForDesc(%s) => %s", desc, result );
-            }
-            return result;
+            super.onDismiss( dialog );
+            mIndex.setListener( null );
+            mHandler.removeCallbacks( mReloadProc );
+            mHandler.removeCallbacks( mPageProc );
         }
 
-        private static String descForFile( File file )
+        // Called from the index's thread; bursts of changes are one reload
+        @Override
+        public void onIndexChanged()
         {
-            long len = file.length();
-            String name = file.getName();
-            String entry = String.format("%s:%d bytes", name, len);
-            return entry;
+            mHandler.removeCallbacks( mReloadProc );
+            mHandler.post( mReloadProc );
         }
 
-        private ArrayAdapter<String> listFiles()
+        private void reload()
         {
-            List<String> fileList = new ArrayList<>();
-            Log.d( TAG, "calling getExternalStorageDirectory()" );
-            File dir = getFilesDir();
-            File[] files = dir.listFiles();
-            if ( null == files ) {
-                Log.e( TAG, "got nothing from getExternalStorageDirectory()" );
+            mHandler.removeCallbacks( mPageProc );
+            mEntries = mIndex.getSorted( mSort );
+            mNextPage = 0;
+            mAdapter.clear();
+            mList.clearChoices();
+
+            if ( !mIndex.isScanned() ) {
+                mStatus.setText( R.string.files_scanning );
+                mStatus.setVisibility( View.VISIBLE );
+            } else if ( mEntries.isEmpty() ) {
+                mStatus.setText( R.string.no_files_found );
+                mStatus.setVisibility( View.VISIBLE );
             } else {
-                for ( File file : files ) {
-                    if ( file.isFile() && file.canRead() ) {
-                        long len = file.length();
-                        if ( len <= Integer.MAX_VALUE ) {
-                            fileList.add( descForFile(file) );
-                        }
-                    }
-                }
+                mStatus.setVisibility( View.GONE );
             }
+            addPage();
+        }
 
-            String[] fileDescs = fileList.toArray( new String[fileList.size()] );
-            ArrayAdapter<String> adapter
-                = new ArrayAdapter<>( getContext(),
-                                      android.R.layout.simple_spinner_item,
-                                      fileDescs );
-            return adapter;
+        private void addPage()
+        {
+            int end = Math.min( mNextPage + PAGE_SIZE, mEntries.size() );
+            mAdapter.setNotifyOnChange( false );
+            for ( int ii = mNextPage; ii < end; ++ii ) {
+                FileIndex.Entry entry = mEntries.get( ii );
+                mAdapter.add( entry.getDesc() );
+                if ( mChecked.contains( entry.getName() ) ) {
+                    mList.setItemChecked( ii, true );
+                }
+            }
+            mAdapter.notifyDataSetChanged();
+            mNextPage = end;
+            if ( mNextPage < mEntries.size() ) {
+                mHandler.post( mPageProc );
+            }
         }
     } // class FilePickDialogFragment
 
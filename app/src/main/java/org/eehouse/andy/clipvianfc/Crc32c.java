@@ -0,0 +1,94 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+// CRC-32C (Castagnoli), the per-packet check from VERSION_3 on. Android has
+// it, hardware-assisted where the CPU allows, only from API 26; older
+// devices use this table-driven version, which gives the same values. It
+// takes eight bytes per step ("slicing-by-8"): sTables[kk] is the CRC of a
+// byte followed by kk zero bytes.
+class Crc32c implements Checksum {
+    private static final int[][] sTables = new int[8][256];
+    static {
+        for ( int ii = 0; ii < 256; ++ii ) {
+            int crc = ii;
+            for ( int jj = 0; jj < 8; ++jj ) {
+                crc = 0 != (crc & 1) ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            sTables[0][ii] = crc;
+        }
+        for ( int kk = 1; kk < 8; ++kk ) {
+            for ( int ii = 0; ii < 256; ++ii ) {
+                int prev = sTables[kk - 1][ii];
+                sTables[kk][ii] = (prev >>> 8) ^ sTables[0][prev & 0xFF];
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    static Checksum make()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+            ? makePlatform() : new Crc32c();
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static Checksum makePlatform() { return new CRC32C(); }
+
+    @Override
+    public void update( int oneByte )
+    {
+        mCrc = (mCrc >>> 8) ^ sTables[0][(mCrc ^ oneByte) & 0xFF];
+    }
+
+    @Override
+    public void update( byte[] bytes, int offset, int len )
+    {
+        int[] t0 = sTables[0], t1 = sTables[1], t2 = sTables[2], t3 = sTables[3];
+        int[] t4 = sTables[4], t5 = sTables[5], t6 = sTables[6], t7 = sTables[7];
+        int crc = mCrc;
+        int ii = offset;
+        int end = offset + len;
+        for ( ; ii + 8 <= end; ii += 8 ) {
+            int lo = crc ^ ((bytes[ii] & 0xFF) | (bytes[ii + 1] & 0xFF) << 8
+                            | (bytes[ii + 2] & 0xFF) << 16 | (bytes[ii + 3] & 0xFF) << 24);
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF]
+                ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                ^ t3[bytes[ii + 4] & 0xFF] ^ t2[bytes[ii + 5] & 0xFF]
+                ^ t1[bytes[ii + 6] & 0xFF] ^ t0[bytes[ii + 7] & 0xFF];
+        }
+        for ( ; ii < end; ++ii ) {
+            crc = (crc >>> 8) ^ t0[(crc ^ bytes[ii]) & 0xFF];
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue() { return ~mCrc & 0xFFFFFFFFL; }
+
+    @Override
+    public void reset() { mCrc = 0xFFFFFFFF; }
+}
@@ -0,0 +1,229 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Delta transfer of a file the receiver has an older copy of (OPT_DELTA).
+// The sender can't see that copy, so it sends a signature of each packet
+// of the new file: an rsync-style rolling sum plus the start of its MD5.
+// The receiver rolls over its old copy looking for blocks with the same
+// signatures, stores those as received, and asks for only the rest.
+class Delta {
+    private static final String TAG = Delta.class.getSimpleName();
+
+    // weak sum, then the first 8 bytes of the MD5
+    static final int SIG_LEN = 4 + 8;
+    // Files bigger than this aren't worth the memory and scan time
+    private static final long MAX_LEN = 64 * 1024 * 1024;
+
+    // Signatures go in groups of as many as fit a packet
+    static int sigsPerGroup( int maxPacketLen ) { return maxPacketLen / SIG_LEN; }
+
+    static int groupCount( int nPackets, int maxPacketLen )
+    {
+        int perGroup = sigsPerGroup( maxPacketLen );
+        return (nPackets + perGroup - 1) / perGroup;
+    }
+
+    // rsync's weak sum: the byte sum and the position-weighted byte sum,
+    // 16 bits each
+    static int weakSum( byte[] buf, int offset, int len )
+    {
+        int aa = 0;
+        int bb = 0;
+        for ( int ii = 0; ii < len; ++ii ) {
+            aa += buf[offset + ii] & 0xFF;
+            bb += (len - ii) * (buf[offset + ii] & 0xFF);
+        }
+        return (bb << 16) | (aa & 0xFFFF);
+    }
+
+    static long strongSum( MessageDigest md, byte[] buf, int offset, int len )
+    {
+        md.reset();
+        md.update( buf, offset, len );
+        return ByteBuffer.wrap( md.digest() ).getLong();
+    }
+
+    static void putSignature( ByteBuffer out, MessageDigest md,
+                              byte[] buf, int offset, int len )
+    {
+        out.putInt( weakSum( buf, offset, len ) );
+        out.putLong( strongSum( md, buf, offset, len ) );
+    }
+
+    // Receiver's side: collects the signatures, then matches them against
+    // the old copy
+    static class Matcher {
+        private int mNPackets;
+        private int mBlockLen;
+        private boolean mShortLast;     // the last packet can't be matched
+        private int mPerGroup;
+        private int[] mWeak;
+        private long[] mStrong;
+        private boolean[] mHaveGroup;
+        private int mNGroupsMissing;
+        private int mFirstMissing;
+        private File mOld;
+
+        Matcher( File old, long fullLen, int maxPacketLen )
+        {
+            mOld = old;
+            mNPackets = (int)((fullLen + maxPacketLen - 1) / maxPacketLen);
+            mShortLast = 0 != fullLen % maxPacketLen;
+            mBlockLen = maxPacketLen;
+            mPerGroup = sigsPerGroup( maxPacketLen );
+            mWeak = new int[mNPackets];
+            mStrong = new long[mNPackets];
+            mHaveGroup = new boolean[groupCount( mNPackets, maxPacketLen )];
+            mNGroupsMissing = mHaveGroup.length;
+        }
+
+        // Only worth it for an old copy we can read, and files small
+        // enough to scan
+        static boolean usable( File old, long fullLen )
+        {
+            return 0 < fullLen && fullLen <= MAX_LEN
+                && old.isFile() && old.canRead()
+                && 0 < old.length() && old.length() <= MAX_LEN;
+        }
+
+        int getNGroups() { return mHaveGroup.length; }
+        boolean haveAll() { return 0 == mNGroupsMissing; }
+        int firstMissing() { return mFirstMissing; }
+
+        boolean isMissing( int group )
+        {
+            return 0 <= group && group < mHaveGroup.length && !mHaveGroup[group];
+        }
+
+        void addGroup( int group, byte[] buf, int offset, int len )
+        {
+            int first = group * mPerGroup;
+            int count = Math.min( mPerGroup, mNPackets - first );
+            if ( isMissing( group ) && len == count * SIG_LEN ) {
+                ByteBuffer bb = ByteBuffer.wrap( buf, offset, len );
+                for ( int ii = 0; ii < count; ++ii ) {
+                    mWeak[first + ii] = bb.getInt();
+                    mStrong[first + ii] = bb.getLong();
+                }
+                mHaveGroup[group] = true;
+                --mNGroupsMissing;
+                while ( mFirstMissing < mHaveGroup.length && mHaveGroup[mFirstMissing] ) {
+                    ++mFirstMissing;
+                }
+            }
+        }
+
+        // Roll a block-sized window over the old copy, storing each full
+        // packet whose signature turns up. Returns how many were found.
+        int scan( FileStore store ) throws IOException, InterruptedException
+        {
+            // Packets by weak sum: heads[hash] is the first, next[] the rest
+            int nHeads = Integer.highestOneBit( Math.max( 1, mNPackets ) ) * 2;
+            int[] heads = new int[nHeads];
+            int[] next = new int[mNPackets];
+            Arrays.fill( heads, -1 );
+            for ( int ii = 0; ii < mNPackets; ++ii ) {
+                int slot = mWeak[ii] & (nHeads - 1);
+                next[ii] = heads[slot];
+                heads[slot] = ii;
+            }
+
+            FileChannel channel = new RandomAccessFile( mOld, "r" ).getChannel();
+            int nFound = 0;
+            try {
+                int oldLen = (int)channel.size();
+                MappedByteBuffer old = channel.map( FileChannel.MapMode.READ_ONLY, 0, oldLen );
+                MessageDigest md = NFCUtils.newMd5();
+                byte[] block = new byte[mBlockLen];
+                boolean[] found = new boolean[mNPackets];
+                int aa = 0;
+                int bb = 0;
+                boolean fresh = true;
+                int nChecks = 0;
+                for ( int pos = 0; pos + mBlockLen <= oldLen; ) {
+                    if ( 0 == (++nChecks & 0xFFFF) && Thread.interrupted() ) {
+                        throw new InterruptedException();
+                    }
+                    if ( fresh ) {
+                        old.position( pos );
+                        old.get( block );
+                        int weak = weakSum( block, 0, mBlockLen );
+                        aa = weak & 0xFFFF;
+                        bb = weak >>> 16;
+                        fresh = false;
+                    }
+
+                    int weak = (bb << 16) | (aa & 0xFFFF);
+                    boolean matched = false;
+                    long strong = 0;
+                    boolean haveStrong = false;
+                    for ( int pp = heads[weak & (nHeads - 1)]; pp >= 0; pp = next[pp] ) {
+                        if ( mWeak[pp] == weak && !found[pp] && isFullBlock( pp ) ) {
+                            if ( !haveStrong ) {
+                                old.position( pos );
+                                old.get( block );
+                                strong = strongSum( md, block, 0, mBlockLen );
+                                haveStrong = true;
+                            }
+                            if ( strong == mStrong[pp] ) {
+                                store.store( pp, block, 0, mBlockLen );
+                                found[pp] = true;
+                                matched = true;
+                                ++nFound;
+                            }
+                        }
+                    }
+
+                    if ( matched ) {
+                        pos += mBlockLen;
+                        fresh = true;
+                    } else if ( pos + mBlockLen < oldLen ) {
+                        // Roll: drop the byte at pos, take the one after the window
+                        int out = old.get( pos ) & 0xFF;
+                        int in = old.get( pos + mBlockLen ) & 0xFF;
+                        aa = (aa - out + in) & 0xFFFF;
+                        bb = (bb - mBlockLen * out + aa) & 0xFFFF;
+                        ++pos;
+                    } else {
+                        break;
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+            Log.d( TAG, "scan(): found %d of %d packets in %s", nFound, mNPackets, mOld );
+            return nFound;
+        }
+
+        private boolean isFullBlock( int packetNo )
+        {
+            return packetNo < mNPackets - 1 || !mShortLast;
+        }
+    } // class Matcher
+}
@@ -0,0 +1,240 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+
+package org.eehouse.andy.clipvianfc;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// What's in the directory files are picked from, so the picker needn't
+// stat everything there each time it opens. The first scan runs in the
+// background; after that a FileObserver keeps the index current one file
+// at a time. Scans and updates run in order on one thread, so neither
+// can undo the other. Whoever's listening hears of each change, and from
+// that thread.
+class FileIndex {
+    private static final String TAG = FileIndex.class.getSimpleName();
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+        | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.ATTRIB
+        | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    static final int SORT_NAME = 0;
+    static final int SORT_SIZE = 1; // biggest first
+    static final int SORT_DATE = 2; // newest first
+
+    interface Listener {
+        void onIndexChanged();
+    }
+
+    static class Entry {
+        private String mName;
+        private long mLen;
+        private long mModified;
+
+        private Entry( File file )
+        {
+            mName = file.getName();
+            mLen = file.length();
+            mModified = file.lastModified();
+        }
+
+        String getName() { return mName; }
+
+        // What the picker shows; only for display
+        String getDesc() { return String.format( "%s:%d bytes", mName, mLen ); }
+    }
+
+    private static FileIndex sInstance;
+
+    private File mDir;
+    private Map<String, Entry> mEntries = new HashMap<>(); // guarded by this
+    private boolean mScanned;                           // guarded by this
+    private boolean mScanPending;                       // guarded by this
+    private volatile Listener mListener;
+    private FileObserver mObserver;
+    private ExecutorService mExecutor;
+
+    static synchronized FileIndex get()
+    {
+        if ( null == sInstance ) {
+            sInstance = new FileIndex( ClipFragment.getFilesDir() );
+        }
+        sInstance.rescanIfNeeded();
+        return sInstance;
+    }
+
+    private FileIndex( File dir )
+    {
+        mDir = dir;
+        mExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable runnable ) {
+                    Thread thread = new Thread( runnable, TAG );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        mObserver = new FileObserver( mDir.getPath(), EVENTS ) {
+                @Override
+                public void onEvent( final int event, final String path ) {
+                    mExecutor.execute( new Runnable() {
+                            @Override
+                            public void run() {
+                                if ( 0 != (event & (DELETE_SELF | MOVE_SELF)) ) {
+                                    Log.d( TAG, "onEvent(): %s is gone", mDir );
+                                    clear();
+                                } else if ( null != path ) {
+                                    update( path );
+                                }
+                            }
+                        } );
+                }
+            };
+    }
+
+    void setListener( Listener listener ) { mListener = listener; }
+
+    // Whether the first scan's done, so an empty index means no files
+    synchronized boolean isScanned() { return mScanned; }
+
+    synchronized List<Entry> getSorted( int sort )
+    {
+        List<Entry> result = new ArrayList<>( mEntries.values() );
+        Collections.sort( result, comparatorFor( sort ) );
+        return result;
+    }
+
+    // Until a scan finds the directory (there's no permission to read it
+    // yet, or it doesn't exist) try again each time the index is wanted.
+    // Watching starts first so nothing that changes during the scan is
+    // missed.
+    private synchronized void rescanIfNeeded()
+    {
+        if ( !mScanned && !mScanPending ) {
+            mScanPending = true;
+            mObserver.startWatching();
+            mExecutor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        scan();
+                    }
+                } );
+        }
+    }
+
+    private void scan()
+    {
+        long start = System.currentTimeMillis();
+        Map<String, Entry> entries = new HashMap<>();
+        File[] files = mDir.listFiles();
+        if ( null == files ) {
+            Log.e( TAG, "scan(): got nothing from %s", mDir );
+        } else {
+            for ( File file : files ) {
+                if ( file.isFile() && file.canRead() ) {
+                    Entry entry = new Entry( file );
+                    entries.put( entry.getName(), entry );
+                }
+            }
+        }
+        synchronized ( this ) {
+            mEntries = entries;
+            mScanned = null != files;
+            mScanPending = false;
+        }
+        Log.d( TAG, "scan(): found %d files in %d ms", entries.size(),
+               System.currentTimeMillis() - start );
+        notifyListener();
+    }
+
+    private void update( String name )
+    {
+        File file = new File( mDir, name );
+        Entry entry = file.isFile() && file.canRead() ? new Entry( file ) : null;
+        synchronized ( this ) {
+            if ( null == entry ) {
+                mEntries.remove( name );
+            } else {
+                mEntries.put( name, entry );
+            }
+        }
+        notifyListener();
+    }
+
+    private void clear()
+    {
+        mObserver.stopWatching();
+        synchronized ( this ) {
+            mEntries.clear();
+            mScanned = false;
+        }
+        notifyListener();
+    }
+
+    private void notifyListener()
+    {
+        Listener listener = mListener;
+        if ( null != listener ) {
+            listener.onIndexChanged();
+        }
+    }
+
+    private static Comparator<Entry> comparatorFor( int sort )
+    {
+        Comparator<Entry> result;
+        switch ( sort ) {
+        case SORT_SIZE:
+            result = new Comparator<Entry>() {
+                    @Override
+                    public int compare( Entry e1, Entry e2 ) {
+                        return Long.compare( e2.mLen, e1.mLen );
+                    }
+                };
+            break;
+        case SORT_DATE:
+            result = new Comparator<Entry>() {
+                    @Override
+                    public int compare( Entry e1, Entry e2 ) {
+                        return Long.compare( e2.mModified, e1.mModified );
+                    }
+                };
+            break;
+        default:
+            result = new Comparator<Entry>() {
+                    @Override
+                    public int compare( Entry e1, Entry e2 ) {
+                        return e1.mName.compareToIgnoreCase( e2.mName );
+                    }
+                };
+            break;
+        }
+        return result;
+    }
+}
@@ -21,65 +21,299 @@ package org.eehouse.andy.clipvianfc;
 
 import android.content.Context;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 class FileStore {
     private static final String TAG = FileStore.class.getSimpleName();
+    private static final int CHUNK_PACKETS = NFCUtils.CHUNK_PACKETS;
+
+    // Running MD5 over the contiguous bytes stored so far, plus the
+    // sender's hash of each chunk (NFCUtils.CHUNK_PACKETS packets) and which
+    // chunks have been checked against theirs. Kept per sum so it outlives
+    // the FileStore made for each tap. If the process dies the digest is
+    // rebuilt from what's on disk the first time it's needed; chunks not
+    // checked by then are checked only by the final sum.
+    private static class DigestState {
+        MessageDigest mDigest = NFCUtils.newMd5();
+        long mLen;
+        Map<Integer, byte[]> mChunkHashes = new HashMap<>();
+        BitSet mVerified = new BitSet();
+    }
+    private static Map<String, DigestState> sDigests = new HashMap<>();
+
+    // Which packets are in the temp file, a bit each, kept in a sidecar
+    // file beside it so packets can arrive in any order and resume asks only
+    // for what's missing
+    private static final String BITS_SUFFIX = ".bits";
+    // Created in place of the bits once checkSum() succeeds. The temp file
+    // is grown to full length up front, so its length says nothing about
+    // what's arrived; a file with neither beside it is treated as empty.
+    private static final String DONE_SUFFIX = ".done";
+    // Packets arriving in order are collected in a buffer this big and
+    // written together. After SYNC_PACKETS packets (once the APDU bringing
+    // the last is answered), when the link goes away, and when the file's
+    // complete, everything's forced to disk: data first, then the bits
+    // saying it's there.
+    private static final int PENDING_LEN = 64 * 1024;
+    private static final int SYNC_PACKETS = 256;
+    // Saved files are copied, and checked, this much at a time
+    private static final long SAVE_CHUNK = 16 * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static Set<String> sSaving = new HashSet<>();
+
+    // Stores whose link went away are kept open, by sum, for PARK_MS in
+    // case the phones touch again, so resuming needn't reopen the files and
+    // reload the bits. Everything's synced when parked, just as if closed.
+    private static final long PARK_MS = 20 * 1000;
+    private static Map<String, FileStore> sParked = new HashMap<>();
+    private static ScheduledExecutorService sExecutor;
+    private ScheduledFuture<?> mExpiry;     // guarded by sParked
+
     private String mSum;
     private File mTmpFile;
     private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private File mBitsFile;
+    private RandomAccessFile mBitsRaf;
+    private byte[] mBits;
+    private int mFirstMissing;
+    // Not yet written: mPending holds the bytes meant for mPendingStart on
+    private ByteBuffer mPending;
+    private long mPendingStart;
+    // Bits not yet written, as a range of indices into mBits
+    private int mDirtyLo = Integer.MAX_VALUE;
+    private int mDirtyHi;
+    private int mUnsynced;
+    // Chunks completed (or whose hash came) since last checked
+    private List<Integer> mToVerify = new ArrayList<>();
+    private MessageDigest mChunkDigest;
     private String mName;
-    private int mNBytesStored;
+    private long mNBytesStored;
     private int mNextPacket = -1;
     private int mPacketsExpected;
     private int mMaxPacketLen;
-    private int mEventualSize;
+    private long mEventualSize;
+    private DigestState mDigest;
 
     static FileStore getFor( Context context, String sum, String name,
-                             int maxPacketLen, int eventualSize )
+                             int maxPacketLen, long eventualSize )
     {
-        File dir = context.getCacheDir();
-        FileStore result = new FileStore( dir, sum, name, maxPacketLen, eventualSize );
+        FileStore result = null;
+        FileStore parked;
+        synchronized ( sParked ) {
+            parked = sParked.remove( sum );
+            if ( null != parked ) {
+                parked.mExpiry.cancel( false );
+            }
+        }
+        if ( null == parked ) {
+            // nothing to resume
+        } else if ( parked.mMaxPacketLen == maxPacketLen
+                    && parked.mEventualSize == eventualSize ) {
+            Log.d( TAG, "getFor(): resuming parked %s", sum );
+            result = parked;
+        } else {
+            parked.close();
+        }
+
+        if ( null == result ) {
+            File dir = context.getCacheDir();
+            result = new FileStore( dir, sum, name, maxPacketLen, eventualSize );
+        }
         return result;
     }
 
-    static void writeFileTo( Context context, File dir, String name, String sum )
+    // Whether a file's been received whole and not yet saved: what's left
+    // once checkSum() succeeds is the file and its done marker
+    static boolean isComplete( Context context, String sum, long len )
     {
-        File destFile = new File( dir, name );
-        File srcDir = context.getCacheDir();
+        File dir = context.getCacheDir();
+        File tmpFile = new File( dir, sum );
+        return tmpFile.isFile() && tmpFile.length() == len
+            && new File( dir, sum + DONE_SUFFIX ).exists()
+            && !new File( dir, sum + BITS_SUFFIX ).exists();
+    }
+
+    interface SaveCallbacks {
+        // Of everything to be done, which is twice the length when copying
+        // since the copy's read back to check it
+        void onSaveProgress( String name, long cur, long total );
+        void onSaveDone( String name, boolean succeeded );
+    }
+
+    // Moves a received file from the cache dir to dir/name, on a thread of
+    // its own. If the two are on the same filesystem that's just a rename.
+    // Otherwise the bytes are copied by the kernel into a temp file beside
+    // the destination, which is checked against the length and sum before
+    // being renamed into place, so a partial copy is never mistaken for the
+    // file. The received file's deleted only once the copy's good.
+    static void writeFileTo( final Context context, final File dir, final String name,
+                             final String sum, final SaveCallbacks callbacks )
+    {
+        boolean isNew;
+        synchronized ( sSaving ) {
+            isNew = sSaving.add( sum );
+        }
+        if ( !isNew ) {
+            // The notification can be tapped twice
+            Log.d( TAG, "writeFileTo(): already saving %s", name );
+        } else {
+            new Thread( new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean ok = false;
+                        try {
+                            ok = save( context.getCacheDir(), dir, name, sum, callbacks );
+                        } catch ( IOException ioe ) {
+                            Log.e( TAG, "writeFileTo(): %s", ioe );
+                        } finally {
+                            synchronized ( sSaving ) {
+                                sSaving.remove( sum );
+                            }
+                        }
+                        callbacks.onSaveDone( name, ok );
+                    }
+                } ).start();
+        }
+    }
+
+    private static boolean save( File srcDir, File dir, String name, String sum,
+                                 SaveCallbacks callbacks ) throws IOException
+    {
+        long start = System.currentTimeMillis();
         File srcFile = new File( srcDir, sum );
+        File doneFile = new File( srcDir, sum + DONE_SUFFIX );
+        File destFile = new File( dir, name );
+        long len = srcFile.length();
+        boolean result = false;
+        if ( !srcFile.isFile() || !doneFile.exists()
+             || new File( srcDir, sum + BITS_SUFFIX ).exists() ) {
+            Log.e( TAG, "save(): no complete %s to save", srcFile );
+        } else if ( srcFile.renameTo( destFile ) ) {
+            result = destFile.length() == len;
+        } else {
+            File partFile = new File( dir, name + PART_SUFFIX );
+            callbacks.onSaveProgress( name, 0, 2 * len );
+            try {
+                copy( srcFile, partFile, len, name, callbacks );
+                result = check( partFile, len, sum, name, callbacks )
+                    && partFile.renameTo( destFile );
+            } finally {
+                if ( result ) {
+                    srcFile.delete();
+                } else {
+                    partFile.delete();
+                }
+            }
+        }
+        if ( result ) {
+            doneFile.delete();
+        }
+        Log.d( TAG, "save(%s): %d bytes took %d ms => %b", name, len,
+               System.currentTimeMillis() - start, result );
+        return result;
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor()
+    {
+        if ( null == sExecutor ) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable runnable ) {
+                        Thread thread = new Thread( runnable, TAG );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        }
+        return sExecutor;
+    }
 
+    private static void copy( File srcFile, File destFile, long len, String name,
+                              SaveCallbacks callbacks ) throws IOException
+    {
+        FileChannel in = new FileInputStream( srcFile ).getChannel();
+        FileChannel out = null;
         try {
-            destFile.createNewFile();
-            FileInputStream fis = new FileInputStream( srcFile );
-            FileOutputStream fos = new FileOutputStream( destFile );
-            byte[] buffer = new byte[2048];
-            for ( ; ; ) {
-                int nRead = fis.read(buffer);
-                if (nRead < 0) {
-                    break;
+            out = new FileOutputStream( destFile ).getChannel();
+            for ( long pos = 0; pos < len; ) {
+                long nMoved = in.transferTo( pos, Math.min( SAVE_CHUNK, len - pos ), out );
+                if ( nMoved <= 0 ) {
+                    throw new EOFException();
                 }
-                fos.write( buffer);
+                pos += nMoved;
+                callbacks.onSaveProgress( name, pos, 2 * len );
+            }
+            out.force( false );
+        } finally {
+            in.close();
+            if ( null != out ) {
+                out.close();
             }
-            srcFile.delete();
-        } catch ( IOException ioe ) {
-            ioe.printStackTrace();
-            Assert.fail();
         }
     }
 
-    private FileStore( File dir, String sum, String name, int maxPacketLen, int eventualSize )
+    private static boolean check( File file, long len, String sum, String name,
+                                  SaveCallbacks callbacks ) throws IOException
+    {
+        boolean result = file.length() == len;
+        if ( !result ) {
+            Log.e( TAG, "check(): %s is %d bytes, not %d", file, file.length(), len );
+        } else {
+            MessageDigest digest = NFCUtils.newMd5();
+            FileChannel channel = new FileInputStream( file ).getChannel();
+            try {
+                for ( long pos = 0; pos < len; ) {
+                    long end = Math.min( pos + SAVE_CHUNK, len );
+                    NFCUtils.updateDigest( digest, channel, pos, end );
+                    pos = end;
+                    callbacks.onSaveProgress( name, len + pos, 2 * len );
+                }
+            } finally {
+                channel.close();
+            }
+            result = sum.equals( NFCUtils.digestToStr( digest.digest() ) );
+            if ( !result ) {
+                Log.e( TAG, "check(): sum of %s doesn't match", file );
+            }
+        }
+        return result;
+    }
+
+    private FileStore( File dir, String sum, String name, int maxPacketLen, long eventualSize )
     {
         mTmpFile = new File( dir, sum );
+        mBitsFile = new File( dir, sum + BITS_SUFFIX );
+        mSum = sum;
+        mName = name;
+        mMaxPacketLen = maxPacketLen;
+        mEventualSize = eventualSize;
+        mPacketsExpected = (int)((eventualSize + maxPacketLen - 1) / maxPacketLen);
+        mBits = new byte[(mPacketsExpected + 7) / 8];
         try {
             if ( ! mTmpFile.exists() ) {
                 mTmpFile.createNewFile();
@@ -87,54 +321,441 @@ class FileStore {
                 Log.d( TAG, "file exists; size: %d", mTmpFile.length() );
             }
             mRaf = new RandomAccessFile( mTmpFile, "rw" );
+            mChannel = mRaf.getChannel();
+            loadBits();
+            // Grow it once rather than a packet at a time
+            if ( mRaf.length() < eventualSize ) {
+                mRaf.setLength( eventualSize );
+            }
         } catch ( IOException ioe ) {
             Assert.fail();
         }
-        mNBytesStored = (int)mTmpFile.length();
-        mSum = sum;
-        mName = name;
-        mMaxPacketLen = maxPacketLen;
-        mEventualSize = eventualSize;
-        mPacketsExpected = (eventualSize + maxPacketLen - 1) / maxPacketLen;
+
+        synchronized ( sDigests ) {
+            mDigest = sDigests.get( sum );
+            if ( null == mDigest ) {
+                mDigest = new DigestState();
+                sDigests.put( sum, mDigest );
+            }
+        }
+
+        // Chunks that were whole but not yet checked when last open get
+        // checked once their hashes are here
+        int nChunks = (mPacketsExpected + CHUNK_PACKETS - 1) / CHUNK_PACKETS;
+        for ( int chunk = 0; chunk < nChunks; ++chunk ) {
+            if ( chunkComplete( chunk ) ) {
+                mToVerify.add( chunk );
+            }
+        }
     }
 
-    int getNBytesReceived()
+    long getNBytesReceived()
     {
         Assert.assertTrue( mNBytesStored >= 0 );
         return mNBytesStored;
     }
 
+    // The first packet not yet stored; mPacketsExpected once all are
     int getNextPacketSought()
     {
-        int result = mNBytesStored / mMaxPacketLen;
-        Log.d( TAG, "getNextPacketSought() => %d", result );
+        int result = mFirstMissing;
+        // Log.d( TAG, "getNextPacketSought() => %d", result );
         Assert.assertTrue( result >= 0 );
         return result;
     }
 
-    void store( int packetNo, byte[] packet )
+    boolean isMissing( int packetNo )
+    {
+        return 0 <= packetNo && packetNo < mPacketsExpected && !hasPacket( packetNo );
+    }
+
+    // Packets may come in any order. Storing one already here does nothing.
+    // The length comes off the wire, so one that's wrong for packetNo is
+    // dropped and the packet left missing.
+    void store( int packetNo, byte[] buf, int offset, int len )
+    {
+        // Log.d( TAG, "store(packetNo=%d)", packetNo );
+        if ( !isMissing( packetNo ) ) {
+            // nothing to do
+        } else if ( len != packetLen( packetNo ) ) {
+            Log.e( TAG, "store(): packet %d has len %d; expected %d",
+                   packetNo, len, packetLen( packetNo ) );
+        } else {
+            try {
+                long fileOffset = (long)packetNo * mMaxPacketLen;
+                write( fileOffset, buf, offset, len );
+                setHasPacket( packetNo );
+                mNBytesStored += len;
+                updateDigest( fileOffset, buf, offset, len );
+                ++mUnsynced;
+            } catch ( IOException ioe ) {
+                Assert.fail();
+            }
+        }
+    }
+
+    void setChunkHash( int chunk, byte[] hash )
+    {
+        synchronized ( mDigest ) {
+            mDigest.mChunkHashes.put( chunk, hash );
+        }
+        if ( chunkComplete( chunk ) ) {
+            mToVerify.add( chunk );
+        }
+    }
+
+    // Check chunks just completed against their hashes, dropping any that
+    // don't match so their packets are asked for again. Called between
+    // APDUs like syncIfDue().
+    void verifyChunks()
     {
-        Log.d( TAG, "store(packetNo=%d)", packetNo );
         try {
-            mRaf.seek( packetNo * mMaxPacketLen );
-            mRaf.write( packet );
-            mNBytesStored += packet.length;
+            for ( int chunk : mToVerify ) {
+                verifyChunk( chunk );
+            }
         } catch ( IOException ioe ) {
-            Assert.fail();
+            Log.e( TAG, "verifyChunks(): %s", ioe );
+        }
+        mToVerify.clear();
+    }
+
+    // Called between APDUs, when the sender's busy and waiting costs nothing
+    void syncIfDue()
+    {
+        if ( mUnsynced >= SYNC_PACKETS ) {
+            try {
+                sync();
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "syncIfDue(): %s", ioe );
+            }
+        }
+    }
+
+    // The receiver's link is gone, but another may come soon
+    void park()
+    {
+        try {
+            sync();
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "park(): %s", ioe );
+        }
+        FileStore displaced;
+        synchronized ( sParked ) {
+            displaced = sParked.put( mSum, this );
+            if ( null != displaced ) {
+                displaced.mExpiry.cancel( false );
+            }
+            mExpiry = getExecutor().schedule( new Runnable() {
+                    @Override
+                    public void run() {
+                        expire();
+                    }
+                }, PARK_MS, TimeUnit.MILLISECONDS );
+        }
+        if ( null != displaced && displaced != this ) {
+            displaced.close();
+        }
+    }
+
+    private void expire()
+    {
+        boolean mine;
+        synchronized ( sParked ) {
+            mine = this == sParked.get( mSum );
+            if ( mine ) {
+                sParked.remove( mSum );
+            }
+        }
+        if ( mine ) {
+            Log.d( TAG, "expire(): closing %s", mSum );
+            close();
+        }
+    }
+
+    // Nothing more is coming through this FileStore
+    void close()
+    {
+        try {
+            sync();
+            mRaf.close();
+            mBitsRaf.close();
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "close(): %s", ioe );
+        }
+
+        // A later store for this sum can rebuild the digest from disk
+        synchronized ( sDigests ) {
+            if ( mDigest == sDigests.get( mSum ) ) {
+                sDigests.remove( mSum );
+            }
+        }
+    }
+
+    // Add to mPending if it continues what's there, else write that first
+    private void write( long fileOffset, byte[] buf, int offset, int len )
+        throws IOException
+    {
+        if ( null == mPending ) {
+            mPending = ByteBuffer.allocate( PENDING_LEN );
+        }
+        if ( fileOffset != mPendingStart + mPending.position()
+             || mPending.remaining() < len ) {
+            flush();
+            mPendingStart = fileOffset;
+        }
+        mPending.put( buf, offset, len );
+    }
+
+    private void flush() throws IOException
+    {
+        if ( null != mPending && 0 < mPending.position() ) {
+            mPending.flip();
+            long pos = mPendingStart;
+            while ( mPending.hasRemaining() ) {
+                pos += mChannel.write( mPending, pos );
+            }
+            mPending.clear();
+            mPendingStart = pos;
+        }
+    }
+
+    private void sync() throws IOException
+    {
+        flush();
+        if ( 0 < mUnsynced || mDirtyLo < mDirtyHi ) {
+            mChannel.force( false );
+            if ( mDirtyLo < mDirtyHi ) {
+                mBitsRaf.seek( mDirtyLo );
+                mBitsRaf.write( mBits, mDirtyLo, mDirtyHi - mDirtyLo );
+                mBitsRaf.getChannel().force( false );
+                mDirtyLo = Integer.MAX_VALUE;
+                mDirtyHi = 0;
+            }
+            mUnsynced = 0;
         }
-        Assert.assertTrue( mNBytesStored == (int)mTmpFile.length() );
     }
 
+    // Everything's been stored, so the digest need only be finished
+    // (unless it has to be caught up after a restart).
     boolean checkSum()
     {
-        String sum = NFCUtils.getMd5Sum( mTmpFile );
-        boolean result = sum.equals( mSum );
+        String sum = null;
+        verifyChunks();
+        synchronized ( mDigest ) {
+            try {
+                sync();
+                catchUpDigest( mEventualSize );
+                sum = NFCUtils.digestToStr( mDigest.mDigest.digest() );
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "checkSum(): %s", ioe );
+            }
+        }
+        synchronized ( sDigests ) {
+            sDigests.remove( mSum );
+        }
+
+        boolean result = mSum.equals( sum );
         if ( result ) {
             Log.d( TAG, "sums check out!!!" );
         } else {
             Log.e( TAG, "checksum mismatch" );
         }
 
+        try {
+            if ( result ) {
+                mBitsRaf.close();
+                new File( mTmpFile.getPath() + DONE_SUFFIX ).createNewFile();
+                mBitsFile.delete();
+            } else {
+                // Ask again for whatever wasn't checked by chunk, or if that
+                // was everything, start over
+                boolean dropped = false;
+                int nChunks = (mPacketsExpected + CHUNK_PACKETS - 1) / CHUNK_PACKETS;
+                for ( int chunk = 0; chunk < nChunks; ++chunk ) {
+                    if ( !mDigest.mVerified.get( chunk ) ) {
+                        dropChunk( chunk );
+                        dropped = true;
+                    }
+                }
+                if ( !dropped ) {
+                    mRaf.setLength( 0 );
+                    mRaf.setLength( mEventualSize );
+                    Arrays.fill( mBits, (byte)0 );
+                    mBitsRaf.seek( 0 );
+                    mBitsRaf.write( mBits );
+                    mFirstMissing = 0;
+                    mNBytesStored = 0;
+                    mDigest.mVerified.clear();
+                }
+                mDigest.mDigest.reset();
+                mDigest.mLen = 0;
+                synchronized ( sDigests ) {
+                    sDigests.put( mSum, mDigest );
+                }
+            }
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "checkSum(): %s", ioe );
+        }
+
         return result;
     }
+
+    private int packetLen( int packetNo )
+    {
+        return (int)Math.min( mMaxPacketLen, mEventualSize - (long)packetNo * mMaxPacketLen );
+    }
+
+    private boolean hasPacket( int packetNo )
+    {
+        return 0 != (mBits[packetNo / 8] & (1 << (packetNo % 8)));
+    }
+
+    private void setHasPacket( int packetNo ) throws IOException
+    {
+        int index = packetNo / 8;
+        mBits[index] |= 1 << (packetNo % 8);
+        mDirtyLo = Math.min( mDirtyLo, index );
+        mDirtyHi = Math.max( mDirtyHi, index + 1 );
+
+        int chunk = packetNo / CHUNK_PACKETS;
+        if ( chunkComplete( chunk ) ) {
+            mToVerify.add( chunk );
+        }
+
+        while ( mFirstMissing < mPacketsExpected && hasPacket( mFirstMissing ) ) {
+            ++mFirstMissing;
+        }
+    }
+
+    private boolean chunkComplete( int chunk )
+    {
+        int end = Math.min( mPacketsExpected, (chunk + 1) * CHUNK_PACKETS );
+        boolean result = true;
+        for ( int packetNo = chunk * CHUNK_PACKETS; result && packetNo < end; ++packetNo ) {
+            result = hasPacket( packetNo );
+        }
+        return result;
+    }
+
+    private void verifyChunk( int chunk ) throws IOException
+    {
+        byte[] expected;
+        boolean verified;
+        synchronized ( mDigest ) {
+            expected = mDigest.mChunkHashes.get( chunk );
+            verified = mDigest.mVerified.get( chunk );
+        }
+        if ( null != expected && !verified && chunkComplete( chunk ) ) {
+            flush();
+            if ( null == mChunkDigest ) {
+                mChunkDigest = NFCUtils.newMd5();
+            }
+            long start = (long)chunk * CHUNK_PACKETS * mMaxPacketLen;
+            long end = Math.min( start + (long)CHUNK_PACKETS * mMaxPacketLen, mEventualSize );
+            mChunkDigest.reset();
+            NFCUtils.updateDigest( mChunkDigest, mChannel, start, end );
+            if ( Arrays.equals( expected, mChunkDigest.digest() ) ) {
+                synchronized ( mDigest ) {
+                    mDigest.mVerified.set( chunk );
+                }
+            } else {
+                Log.e( TAG, "verifyChunk(): chunk %d is bad; dropping it", chunk );
+                dropChunk( chunk );
+            }
+        }
+    }
+
+    // Forget a chunk's packets so they're asked for again
+    private void dropChunk( int chunk )
+    {
+        int first = chunk * CHUNK_PACKETS;
+        int end = Math.min( mPacketsExpected, first + CHUNK_PACKETS );
+        for ( int packetNo = first; packetNo < end; ++packetNo ) {
+            if ( hasPacket( packetNo ) ) {
+                int index = packetNo / 8;
+                mBits[index] &= ~(1 << (packetNo % 8));
+                mDirtyLo = Math.min( mDirtyLo, index );
+                mDirtyHi = Math.max( mDirtyHi, index + 1 );
+                mNBytesStored -= packetLen( packetNo );
+            }
+        }
+        mFirstMissing = Math.min( mFirstMissing, first );
+
+        // The digest may have taken in the bad bytes
+        synchronized ( mDigest ) {
+            if ( (long)first * mMaxPacketLen < mDigest.mLen ) {
+                mDigest.mDigest.reset();
+                mDigest.mLen = 0;
+            }
+        }
+    }
+
+    // Read the sidecar. A temp file without one is whole if its .done
+    // marker's there; otherwise it's discarded and started over.
+    private void loadBits() throws IOException
+    {
+        boolean haveBits = mBitsFile.exists();
+        mBitsRaf = new RandomAccessFile( mBitsFile, "rw" );
+        if ( haveBits ) {
+            mBitsRaf.seek( 0 );
+            int nRead = mBitsRaf.read( mBits );
+            Log.d( TAG, "loadBits(): read %d of %d bytes", nRead, mBits.length );
+        } else {
+            if ( new File( mTmpFile.getPath() + DONE_SUFFIX ).exists() ) {
+                // Checked once already, and will be again
+                for ( int ii = 0; ii < mPacketsExpected; ++ii ) {
+                    mBits[ii / 8] |= 1 << (ii % 8);
+                }
+            } else {
+                // Whatever's there can't be trusted
+                mRaf.setLength( 0 );
+            }
+            mBitsRaf.write( mBits );
+        }
+
+        mFirstMissing = mPacketsExpected;
+        mNBytesStored = 0;
+        for ( int ii = mPacketsExpected - 1; ii >= 0; --ii ) {
+            if ( hasPacket( ii ) ) {
+                mNBytesStored += packetLen( ii );
+            } else {
+                mFirstMissing = ii;
+            }
+        }
+    }
+
+    // Bytes from the start of the file with no packets missing
+    private long contiguousLen()
+    {
+        return Math.min( (long)mFirstMissing * mMaxPacketLen, mEventualSize );
+    }
+
+    // Called with bytes just written at fileOffset. The digest can only take
+    // them if everything before is in; any later packets that were waiting
+    // on these are then read back from disk.
+    private void updateDigest( long fileOffset, byte[] buf, int offset, int len )
+        throws IOException
+    {
+        synchronized ( mDigest ) {
+            catchUpDigest( Math.min( fileOffset, contiguousLen() ) );
+            if ( fileOffset == mDigest.mLen ) {
+                mDigest.mDigest.update( buf, offset, len );
+                mDigest.mLen += len;
+            }
+            catchUpDigest( contiguousLen() );
+        }
+    }
+
+    // Bring the digest up to upTo by reading back what's already on disk.
+    // Only does anything after a restart lost the in-memory state.
+    private void catchUpDigest( long upTo ) throws IOException
+    {
+        if ( mDigest.mLen < upTo ) {
+            flush();
+            Log.d( TAG, "catchUpDigest(): reading %d bytes", upTo - mDigest.mLen );
+            NFCUtils.updateDigest( mDigest.mDigest, mChannel,
+                                   mDigest.mLen, upTo );
+            mDigest.mLen = upTo;
+        }
+    }
 }
@@ -19,28 +19,132 @@
 
 package org.eehouse.andy.clipvianfc;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Formatter;
+import java.util.IllegalFormatException;
+import java.util.Locale;
 
+// Logs to logcat, debug messages only in debug builds, and keeps the last
+// RING_SIZE messages of every level in memory so they can be dumped to a
+// file from the field. Messages logcat didn't need are kept as format and
+// arguments and formatted only when the ring's dumped, but only if every
+// argument is immutable; anything else is formatted as it's stored so the
+// ring never holds something that's since changed or would have been freed.
 class Log {
-    private static final boolean STORE = false;
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+    private static final int RING_SIZE = 1024;
+
+    // The ring, as parallel arrays. sArgs[slot] is null once sMsgs[slot]'s
+    // been formatted.
+    private static final long[] sTimes = new long[RING_SIZE];
+    private static final char[] sLevels = new char[RING_SIZE];
+    private static final String[] sTags = new String[RING_SIZE];
+    private static final String[] sMsgs = new String[RING_SIZE];
+    private static final Object[][] sArgs = new Object[RING_SIZE][];
+    private static int sNext;           // guarded by sTimes
+    private static long sCount;
 
     static void d( String tag, String fmt, Object... args )
     {
-        String str = new Formatter().format( fmt, args ).toString();
-        android.util.Log.d( tag, str );
-        store( "d", tag, str );
+        if ( DEBUG ) {
+            String msg = format( fmt, args );
+            android.util.Log.d( tag, msg );
+            store( 'd', tag, msg, null );
+        } else if ( allImmutable( args ) ) {
+            store( 'd', tag, fmt, args );
+        } else {
+            store( 'd', tag, format( fmt, args ), null );
+        }
     }
 
     static void e( String tag, String fmt, Object... args )
     {
-        String str = new Formatter().format( fmt, args ).toString();
-        android.util.Log.e( tag, str );
-        store( "e", tag, str );
+        String msg = format( fmt, args );
+        android.util.Log.e( tag, msg );
+        store( 'e', tag, msg, null );
+    }
+
+    private static String format( String fmt, Object[] args )
+    {
+        String result = fmt;
+        if ( 0 < args.length || 0 <= fmt.indexOf( '%' ) ) {
+            try {
+                result = new Formatter().format( fmt, args ).toString();
+            } catch ( IllegalFormatException ife ) {
+                result = fmt + " (" + ife + ")";
+            }
+        }
+        return result;
+    }
+
+    // Safe to format later: nothing here can change in the meantime
+    private static boolean allImmutable( Object[] args )
+    {
+        boolean result = true;
+        for ( int ii = 0; result && ii < args.length; ++ii ) {
+            Object arg = args[ii];
+            result = null == arg || arg instanceof String
+                || arg instanceof Integer || arg instanceof Long
+                || arg instanceof Short || arg instanceof Byte
+                || arg instanceof Boolean || arg instanceof Character
+                || arg instanceof Float || arg instanceof Double
+                || arg instanceof Enum;
+        }
+        return result;
+    }
+
+    private static void store( char level, String tag, String msg, Object[] args )
+    {
+        synchronized ( sTimes ) {
+            int slot = sNext;
+            sTimes[slot] = System.currentTimeMillis();
+            sLevels[slot] = level;
+            sTags[slot] = tag;
+            sMsgs[slot] = msg;
+            sArgs[slot] = args;
+            sNext = (slot + 1) % RING_SIZE;
+            ++sCount;
+        }
     }
 
-    private static void store( String level, String tag, String msg )
+    // Write what's in the ring to file, oldest first
+    static void dumpTo( File file ) throws IOException
     {
-        if ( STORE ) {
+        long[] times = new long[RING_SIZE];
+        char[] levels = new char[RING_SIZE];
+        String[] tags = new String[RING_SIZE];
+        String[] msgs = new String[RING_SIZE];
+        Object[][] args = new Object[RING_SIZE][];
+        int first;
+        int count;
+        synchronized ( sTimes ) {
+            count = (int)Math.min( sCount, RING_SIZE );
+            first = (sNext - count + RING_SIZE) % RING_SIZE;
+            System.arraycopy( sTimes, 0, times, 0, RING_SIZE );
+            System.arraycopy( sLevels, 0, levels, 0, RING_SIZE );
+            System.arraycopy( sTags, 0, tags, 0, RING_SIZE );
+            System.arraycopy( sMsgs, 0, msgs, 0, RING_SIZE );
+            System.arraycopy( sArgs, 0, args, 0, RING_SIZE );
+        }
+
+        SimpleDateFormat df = new SimpleDateFormat( "MM-dd HH:mm:ss.SSS", Locale.US );
+        PrintWriter pw = new PrintWriter( new FileWriter( file ) );
+        try {
+            for ( int ii = 0; ii < count; ++ii ) {
+                int slot = (first + ii) % RING_SIZE;
+                String msg = null == args[slot] ? msgs[slot]
+                    : format( msgs[slot], args[slot] );
+                pw.printf( "%s %c/%s: %s%n", df.format( new Date( times[slot] ) ),
+                           Character.toUpperCase( levels[slot] ), tags[slot],
+                           msg );
+            }
+        } finally {
+            pw.close();
         }
     }
 }
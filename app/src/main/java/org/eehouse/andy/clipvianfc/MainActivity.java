@@ -149,10 +149,29 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    // Saving a big file can take a while, so it's done in the background
+    // with its progress in a notification
     private void writeFile( String name, String sum )
     {
         File dir = ClipFragment.getFilesDir();
-        FileStore.writeFileTo( this, dir, name, sum );
+        final Context context = getApplicationContext();
+        FileStore.writeFileTo( context, dir, name, sum, new FileStore.SaveCallbacks() {
+                private int mPercent = -1;
+
+                @Override
+                public void onSaveProgress( String name, long cur, long total ) {
+                    int percent = (int)(100 * cur / total);
+                    if ( percent != mPercent ) {
+                        mPercent = percent;
+                        Notify.postSaving( context, name, percent );
+                    }
+                }
+
+                @Override
+                public void onSaveDone( String name, boolean succeeded ) {
+                    Notify.postSaved( context, name, succeeded );
+                }
+            } );
     }
 
     private void showHideDisabled()
@@ -0,0 +1,252 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+// Numbers from each NFC session, sending or receiving: APDU timings and
+// sizes, goodput, time to first byte, and which tap of a transfer it was.
+// The last MAX_SESSIONS are kept in memory for the About page, which can
+// show them and export them as JSON.
+class Metrics {
+    private static final String TAG = Metrics.class.getSimpleName();
+    private static final int MAX_SESSIONS = 32;
+    // Histogram buckets are powers of two: times from TIME_FLOOR_US
+    // microseconds, sizes from SIZE_FLOOR bytes. The last takes the rest.
+    private static final int N_BUCKETS = 12;
+    private static final int TIME_FLOOR_US = 128;
+    private static final int SIZE_FLOOR = 32;
+
+    private static Deque<Session> sSessions = new ArrayDeque<>();
+
+    static Session start( boolean sending, long totalLen, int tap )
+    {
+        Session session = new Session( sending, totalLen, tap );
+        synchronized ( sSessions ) {
+            if ( MAX_SESSIONS <= sSessions.size() ) {
+                sSessions.removeFirst();
+            }
+            sSessions.addLast( session );
+        }
+        return session;
+    }
+
+    static class Session {
+        private boolean mSending;
+        private long mTotalLen;
+        private int mTap;               // 1 for a transfer's first; 0 if unknown
+        private long mStartMs;
+        private long mStartNanos;
+        private long mEndNanos;
+        private long mFirstByteNanos;
+        private long mStartProgress = -1;
+        private long mProgress;
+        private int mNApdus;
+        private long mBytesOut;         // link bytes, both ways
+        private long mBytesIn;
+        private boolean mDropped;
+        // Sending, each transceive() round trip; receiving, how long each
+        // APDU took to handle
+        private int[] mTimes = new int[N_BUCKETS];
+        private long mMaxNanos;
+        private int[] mSizes = new int[N_BUCKETS];
+
+        private Session( boolean sending, long totalLen, int tap )
+        {
+            mSending = sending;
+            mTotalLen = totalLen;
+            mTap = tap;
+            mStartMs = System.currentTimeMillis();
+            mStartNanos = System.nanoTime();
+        }
+
+        synchronized void setTotal( long totalLen ) { mTotalLen = totalLen; }
+
+        // An APDU and its response; len is the one that carried data
+        synchronized void onApdu( int len, int responseLen, long nanos )
+        {
+            ++mNApdus;
+            mBytesOut += mSending ? len : responseLen;
+            mBytesIn += mSending ? responseLen : len;
+            ++mTimes[bucket( nanos / 1000 / TIME_FLOOR_US )];
+            mMaxNanos = Math.max( mMaxNanos, nanos );
+            ++mSizes[bucket( len / SIZE_FLOOR )];
+        }
+
+        // Bytes of the transfer the receiver has, in total
+        synchronized void onProgress( long received )
+        {
+            if ( mStartProgress < 0 ) {
+                mStartProgress = received;
+            } else if ( 0 == mFirstByteNanos && received > mStartProgress ) {
+                mFirstByteNanos = System.nanoTime();
+            }
+            mProgress = received;
+        }
+
+        synchronized void onDrop() { mDropped = true; }
+
+        synchronized void end()
+        {
+            if ( 0 == mEndNanos ) {
+                mEndNanos = System.nanoTime();
+            }
+        }
+
+        private synchronized long elapsedMs()
+        {
+            long end = 0 == mEndNanos ? System.nanoTime() : mEndNanos;
+            return (end - mStartNanos) / 1000000;
+        }
+
+        private synchronized long goodput()
+        {
+            long ms = elapsedMs();
+            return 0 == ms ? 0 : (mProgress - Math.max( 0, mStartProgress )) * 1000 / ms;
+        }
+
+        private synchronized boolean completed()
+        {
+            return mProgress == mTotalLen;
+        }
+
+        private synchronized String describe( SimpleDateFormat df )
+        {
+            long received = mProgress - Math.max( 0, mStartProgress );
+            StringBuilder sb = new StringBuilder()
+                .append( df.format( new Date( mStartMs ) ) )
+                .append( mSending ? " sent " : " received " )
+                .append( received ).append( " of " ).append( mTotalLen )
+                .append( " bytes" );
+            if ( 0 < mTap ) {
+                sb.append( ", tap " ).append( mTap );
+            }
+            if ( 0 < mStartProgress ) {
+                sb.append( ", resuming at " ).append( mStartProgress );
+            }
+            sb.append( completed() ? ", done" : mDropped ? ", dropped" : "" )
+                .append( "\n  " ).append( mNApdus ).append( " APDUs in " )
+                .append( elapsedMs() ).append( " ms, " )
+                .append( goodput() / 1024 ).append( " KB/s" );
+            if ( 0 != mFirstByteNanos ) {
+                sb.append( ", first byte at " )
+                    .append( (mFirstByteNanos - mStartNanos) / 1000000 ).append( " ms" );
+            }
+            sb.append( "\n  " ).append( mSending ? "round trip" : "handling" )
+                .append( " median < " ).append( median( mTimes ) * TIME_FLOOR_US / 1000f )
+                .append( " ms, max " ).append( mMaxNanos / 1000000f ).append( " ms" );
+            return sb.toString();
+        }
+
+        private synchronized JSONObject toJson() throws JSONException
+        {
+            JSONObject result = new JSONObject()
+                .put( "sending", mSending )
+                .put( "start", mStartMs )
+                .put( "tap", mTap )
+                .put( "total", mTotalLen )
+                .put( "startProgress", Math.max( 0, mStartProgress ) )
+                .put( "progress", mProgress )
+                .put( "completed", completed() )
+                .put( "dropped", mDropped )
+                .put( "elapsedMs", elapsedMs() )
+                .put( "goodput", goodput() )
+                .put( "firstByteMs", 0 == mFirstByteNanos ? -1
+                      : (mFirstByteNanos - mStartNanos) / 1000000 )
+                .put( "apdus", mNApdus )
+                .put( "bytesOut", mBytesOut )
+                .put( "bytesIn", mBytesIn )
+                .put( "maxTimeUs", mMaxNanos / 1000 )
+                .put( "timesUs", histogram( mTimes, TIME_FLOOR_US ) )
+                .put( "sizes", histogram( mSizes, SIZE_FLOOR ) );
+            return result;
+        }
+    }
+
+    // Human-readable, newest first
+    static String describe()
+    {
+        SimpleDateFormat df = new SimpleDateFormat( "MM-dd HH:mm:ss", Locale.US );
+        StringBuilder sb = new StringBuilder();
+        synchronized ( sSessions ) {
+            Iterator<Session> iter = sSessions.descendingIterator();
+            while ( iter.hasNext() ) {
+                sb.append( iter.next().describe( df ) ).append( "\n" );
+            }
+        }
+        return sb.toString();
+    }
+
+    // Every session, oldest first. Histograms are arrays of counts, with
+    // bucket ii holding values below floor * 2^ii.
+    static String toJson()
+    {
+        JSONArray sessions = new JSONArray();
+        try {
+            synchronized ( sSessions ) {
+                for ( Session session : sSessions ) {
+                    sessions.put( session.toJson() );
+                }
+            }
+        } catch ( JSONException ex ) {
+            Log.e( TAG, "toJson(): %s", ex );
+        }
+        return sessions.toString();
+    }
+
+    private static int bucket( long units )
+    {
+        return Math.min( N_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( units ) );
+    }
+
+    // Upper bound of the median bucket, in floor units
+    private static int median( int[] counts )
+    {
+        int total = 0;
+        for ( int count : counts ) {
+            total += count;
+        }
+        int result = 0;
+        for ( int seen = 0; result < counts.length; ++result ) {
+            seen += counts[result];
+            if ( seen * 2 >= total ) {
+                break;
+            }
+        }
+        return 1 << Math.min( result, counts.length - 1 );
+    }
+
+    private static JSONObject histogram( int[] counts, int floor ) throws JSONException
+    {
+        JSONArray array = new JSONArray();
+        for ( int count : counts ) {
+            array.put( count );
+        }
+        return new JSONObject().put( "floor", floor ).put( "counts", array );
+    }
+}
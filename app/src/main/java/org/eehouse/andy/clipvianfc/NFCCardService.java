@@ -21,6 +21,8 @@ package org.eehouse.andy.clipvianfc;
 
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -34,15 +36,58 @@ public class NFCCardService extends HostApduService {
     static final byte[] STATUS_FAILED = { 0x6F, 0x00, };
     static final byte[] STATUS_SUCCESS = { (byte)0x90, 0x00, };
 
+    // APDUs are handled in order on this thread, never the main one, and
+    // answered with sendResponseApdu(). mReceiver is touched only here.
+    private HandlerThread mWorkerThread;
+    private Handler mWorker;
     private NFCUtils.Receiver mReceiver;
 
     @Override
-    public byte[] processCommandApdu( byte[] apdu, Bundle extras )
+    public void onCreate()
+    {
+        super.onCreate();
+        mWorkerThread = new HandlerThread( TAG );
+        mWorkerThread.start();
+        mWorker = new Handler( mWorkerThread.getLooper() );
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        mWorkerThread.quitSafely();
+        super.onDestroy();
+    }
+
+    @Override
+    public byte[] processCommandApdu( final byte[] apdu, Bundle extras )
+    {
+        mWorker.post( new Runnable() {
+                @Override
+                public void run() {
+                    sendResponseApdu( process( apdu ) );
+                    // Whatever can wait, done while the sender's busy. The
+                    // next response itself can't be built ahead: it says
+                    // which of the next APDU's packets arrived.
+                    if ( null != mReceiver ) {
+                        mReceiver.onResponseSent();
+                    }
+                    SideEffects.onResponseSent();
+                }
+            } );
+        return null;            // answered later
+    }
+
+    private byte[] process( byte[] apdu )
     {
         byte[] result = STATUS_FAILED;
 
         if ( null != apdu ) {
             try {
+                if ( null != mReceiver && NFCUtils.isFirst( apdu ) ) {
+                    // The sender's moved on to another batch
+                    mReceiver.close();
+                    mReceiver = null;
+                }
                 if ( null == mReceiver ) {
                     mReceiver = NFCUtils.makeReceiver( this, apdu );
                     result = mReceiver.receiveFirst();
@@ -71,6 +116,14 @@ public class NFCCardService extends HostApduService {
         }
         Log.d( TAG, "onDeactivated(reason=" + str + ")" );
 
-        mReceiver = null;
+        mWorker.post( new Runnable() {
+                @Override
+                public void run() {
+                    if ( null != mReceiver ) {
+                        mReceiver.close();
+                        mReceiver = null;
+                    }
+                }
+            } );
     }
 }
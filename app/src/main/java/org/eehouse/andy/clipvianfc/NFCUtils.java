@@ -22,9 +22,11 @@ package org.eehouse.andy.clipvianfc;
 import android.app.Activity;
 import android.content.ClipData;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
+import android.webkit.MimeTypeMap;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -32,17 +34,36 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Checksum;
+import java.util.zip.Inflater;
 
 // Let's treat each thing to send as a huge byte array. Subclasses provide
 // ways to get subarrays. In the file case, they're sections of the file. In
@@ -54,13 +75,67 @@ class NFCUtils {
     private static final String TAG = NFCUtils.class.getSimpleName();
 
     // On some devices getMaxTransceiveLength() reports a large number that
-    // transceive() can't in fact deliver. We'll force a smaller number to be
-    // safe. I've tried doubling this and it actually slows file transfer down!
+    // transceive() can't in fact deliver. Packets are sized to fit this, and
+    // it's where ApduSizer starts probing for what the link really does.
     private static final int MY_MAX = 1024;
 
     private static final int HASH_LEN = 4;
+    // Read size when computing sums over files
+    private static final int DIGEST_CHUNK = 64 * 1024;
+    // status word, bytes received, next packet wanted
+    private static final int RESPONSE_LEN = NFCCardService.STATUS_SUCCESS.length + 4 + 4;
+
+    // VERSION_2 packs any number of packets into each APDU as records, and
+    // the receiver says which of the WINDOW packets starting with the next
+    // one it wants. An APDU is a count byte followed by that many records
+    // of: flags, packet number, payload length, hash, payload.
+    private static final int RECORD_HEADER_LEN = 1 + 4 + 2 + HASH_LEN;
+    private static final int WINDOW = 64;
+    // V1 response, then version, options accepted, receiver's install id,
+    // window size, and a bit per window packet
+    private static final int RESPONSE_LEN_V2 = RESPONSE_LEN + 1 + 1 + 4 + 2 + WINDOW / 8;
+    // VERSION_4: then the bytes received, as a long
+    private static final int RESPONSE_LEN_V4 = RESPONSE_LEN_V2 + 8;
+    // In place of an int size, says a long follows. Only senders of
+    // files this big, which need VERSION_4, send it.
+    private static final int LONG_SIZE = -1;
+
+    // Options a VERSION_2 sender offers in a byte at the end of its first
+    // APDU, where older receivers won't look. The receiver's response says
+    // which it accepts.
+    static final byte OPT_DEFLATE = 0x01;
+    // Send an MD5 of each CHUNK_PACKETS packets of a file, so the receiver
+    // can drop and re-request just the chunks that turn out bad
+    static final byte OPT_CHUNK_HASHES = 0x02;
+    // The receiver has an older copy of the file: it's sent signatures of
+    // the packets first (see Delta), and asks only for those it can't find
+    static final byte OPT_DELTA = 0x04;
+    private static final byte OPTS_SUPPORTED = OPT_DEFLATE;
+    static final int CHUNK_PACKETS = 64;
+    // Record flags
+    private static final byte FLAG_DEFLATED = 0x01;
+    // Not a packet: the record's packet number is a chunk number, and its
+    // payload the hash of that chunk
+    private static final byte FLAG_CHUNK_HASH = 0x02;
+    private static final int CHUNK_HASH_LEN = 16;
+    private static final int CHUNK_RECORD_LEN = RECORD_HEADER_LEN + CHUNK_HASH_LEN;
+    // Not a packet: the record's packet number is a group number, and its
+    // payload the Delta signatures of the group's packets. While these are
+    // wanted the receiver's next packet is -1 - the first group wanted,
+    // and its window is over groups.
+    private static final byte FLAG_SIGNATURES = 0x04;
 
     static final byte VERSION_1 = (byte)0x01;
+    static final byte VERSION_2 = (byte)0x02;
+    // Same as VERSION_2, but each packet is checked with CRC-32C rather
+    // than hashOf()
+    static final byte VERSION_3 = (byte)0x03;
+    // Sizes and offsets are longs: a LONG_SIZE in headers, and the bytes
+    // received at the end of responses
+    static final byte VERSION_4 = (byte)0x04;
+    // Knows CHUNKED_CLIP
+    static final byte VERSION_5 = (byte)0x05;
+    static final byte VERSION_MAX = VERSION_5;
     static private final int mFlags = NfcAdapter.FLAG_READER_NFC_A
         | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
     static final byte[] HEADER = { 0x00, (byte)0xA4, 0x04, 0x00 };
@@ -68,6 +143,9 @@ class NFCUtils {
 
     static final byte CLIP = 0x02; // whatever. Just not 0 and 1
     static final byte FILE = 0x03;
+    static final byte BATCH = 0x04;
+    // A clip too long for one writeUTF(); see ClipSender
+    static final byte CHUNKED_CLIP = 0x05;
 
     public static enum ErrorCode {
         ERR_REMOTE_TOO_NEW,
@@ -80,6 +158,61 @@ class NFCUtils {
         // void onError( ErrorCode err );
     }
 
+    // What a receiver does with a completed transfer. Replaceable so that
+    // something other than NFCCardService (e.g. LoopbackLink) can drive a
+    // receiver without touching the clipboard or posting notifications.
+    interface ReceiveCallbacks {
+        void onClipReceived( Context context, String mimeType, String label, String data );
+        void onFileReceived( Context context, String name, String sum );
+    }
+
+    private static ReceiveCallbacks sReceiveCallbacks = new ReceiveCallbacks() {
+            @Override
+            public void onClipReceived( Context context, String mimeType,
+                                        String label, String data )
+            {
+                Clip.setData( context, mimeType, label, data );
+                Notify.post( context, data );
+            }
+
+            @Override
+            public void onFileReceived( Context context, String name, String sum )
+            {
+                Notify.postGotFile( context, name, sum );
+            }
+        };
+
+    static void setReceiveCallbacks( ReceiveCallbacks callbacks )
+    {
+        sReceiveCallbacks = callbacks;
+    }
+
+    // Random, made once per install, so a sender can tell receivers apart
+    // (e.g. to remember what APDU size worked with each)
+    private static final String KEY_INSTALL_ID = "install_id";
+    private static Integer sInstallId;
+
+    static int getInstallId( Context context )
+    {
+        synchronized ( KEY_INSTALL_ID ) {
+            if ( null == sInstallId ) {
+                SharedPreferences prefs = null == context ? null
+                    : context.getSharedPreferences( TAG, Context.MODE_PRIVATE );
+                if ( null == prefs ) {
+                    sInstallId = 0;
+                } else {
+                    int id = prefs.getInt( KEY_INSTALL_ID, 0 );
+                    if ( 0 == id ) {
+                        id = new SecureRandom().nextInt();
+                        prefs.edit().putInt( KEY_INSTALL_ID, id ).apply();
+                    }
+                    sInstallId = id;
+                }
+            }
+            return sInstallId;
+        }
+    }
+
     public static boolean deviceSupportsNFC(Context context)
     {
         NfcAdapter adapter = NfcAdapter.getDefaultAdapter(context);
@@ -109,6 +242,12 @@ class NFCUtils {
         send( reader, callbacks );
     }
 
+    static void sendFiles( Activity activity, Callbacks callbacks, List<File> files )
+    {
+        BatchSender reader = new BatchSender( activity, callbacks, files );
+        send( reader, callbacks );
+    }
+
     static void sendClip( Activity activity, final Callbacks callbacks,
                           String mimeType, String label, ClipData.Item data )
     {
@@ -116,7 +255,7 @@ class NFCUtils {
         send( reader, callbacks );
     }
 
-    static void send( final Sender reader, final Callbacks callbacks )
+    static void send( Sender reader, Callbacks callbacks )
     {
         synchronized( sSender ) {
             if ( null == sSender[0] ) {
@@ -127,37 +266,9 @@ class NFCUtils {
                     .getDefaultAdapter( reader.activity() )
                     .enableReaderMode( reader.activity(), sSender[0], mFlags, null );
 
-                // Start a thread to detect 10 seconds of failure to
-                // connect. Each time we DO connect the timer's reset.
-
-                new Thread( new Runnable() {
-                        @Override
-                        public void run() {
-                            int counter = 0;
-                            long lastConnect = 0;
-                            for ( ; ; ) {
-                                long curConnect = reader.getLastConnect();
-                                if ( curConnect > lastConnect ) {
-                                    lastConnect = curConnect;
-                                    counter = 0;
-                                } else {
-                                    if ( ++counter == 10 ) {
-                                        break; // outa here
-                                    }
-                                    callbacks.onProgressMade( counter, 10 );
-                                }
-
-                                try {
-                                    Thread.sleep( 1 * 1000 );
-                                } catch ( InterruptedException ie ) {
-                                }
-                                if ( reader.stopped() ) {
-                                    break;
-                                }
-                            }
-                            reader.stop();
-                        }
-                    }).start();
+                // Give up after a while without a connect. Each time we
+                // DO connect the timer's reset.
+                reader.startTimer();
             }
         }
     }
@@ -167,11 +278,44 @@ class NFCUtils {
         private NfcAdapter mAdapter;
         private boolean mSendSucceeded = false;
         private Callbacks mCallbacks;
-        private long mLastConnect;
+        private SessionTimer mTimer;
         int mNextPacket = -1;
         int mMaxPacketLen;
-
-        private Sender( Activity activity, Callbacks callbacks )
+        // Reused for every APDU after the first: two for the steady-state
+        // lengths (full APDUs with and without a chunk hash), and one for
+        // anything else, like the shorter last packet
+        private ByteBuffer[] mFullApdus = new ByteBuffer[2];
+        private ByteBuffer mLastApdu;
+        // Version the receiver chose, and what it asked for next (VERSION_2)
+        private byte mVersion;
+        private Checksum mCrc = Crc32c.make();
+        private byte[] mWindow = new byte[WINDOW / 8];
+        private int[] mBatch = new int[WINDOW];
+        // Picks the VERSION_2 APDU size; kept across sessions with a peer
+        private ApduSizer mSizer;
+        private int mPeerId;
+        // Options the receiver accepted, and what compression needs
+        private byte mOptions;
+        private Deflater mDeflater;
+        private byte[] mRaw;
+        private byte[] mDeflated;
+        private ByteBuffer mStaging;
+        // Packets to send without trying to deflate, and how many to skip
+        // next time one doesn't shrink
+        private int mDeflateSkip;
+        private int mDeflateBackoff = 1;
+        // Chunk hashes, computed as first needed (OPT_CHUNK_HASHES)
+        private byte[][] mChunkHashes;
+        private MessageDigest mChunkDigest;
+        private byte[] mChunkBuf;
+        private MessageDigest mSigDigest;
+        // This session's, and how many sessions there've been
+        private Metrics.Session mMetrics;
+        private int mNSessions;
+        // Longest first APDU this link takes
+        int mFirstMax;
+
+        Sender( Activity activity, Callbacks callbacks )
         {
             mActivity = activity;
             mCallbacks = callbacks;
@@ -181,34 +325,358 @@ class NFCUtils {
         Activity activity() { return mActivity; }
 
         abstract byte[] completeFirst( ByteArrayOutputStream baos );
-        abstract int getTotalToSend();
+        abstract long getTotalToSend();
 
-        long getLastConnect() { return mLastConnect; }
+        // False for data that's already compressed
+        boolean worthCompressing() { return true; }
 
-        private void addBytesWithHash( ByteArrayOutputStream baos, byte[] bytes )
+        // Options to offer beyond OPT_DEFLATE
+        byte moreOptions() { return 0; }
+
+        byte minVersion() { return VERSION_1; }
+
+        // Progress is reported as what's received of getTotalToSend(), plus
+        // this, out of that. Different when that's only part of the send.
+        long getProgressBase() { return 0; }
+        long getProgressTotal() { return getTotalToSend(); }
+
+        void setSendSucceeded() { mSendSucceeded = true; }
+
+        // Called once the receiver has everything this session's first APDU
+        // offered. True if there's more, to be offered in another first
+        // APDU over the same link.
+        boolean startNextBatch() { return false; }
+
+        // getTotalToSend() and getBytesFrom() now mean a different file, so
+        // nothing computed from the last one applies
+        void startFile()
         {
-            int hash = Arrays.hashCode( bytes );
-            try {
-                write( baos, hash );
-                baos.write( bytes );
-            } catch ( IOException ioe ) {
+            mChunkHashes = null;
+            mDeflateSkip = 0;
+            mDeflateBackoff = 1;
+        }
+
+        void startTimer()
+        {
+            mTimer = new SessionTimer( mCallbacks, new Runnable() {
+                    @Override
+                    public void run() {
+                        stop();
+                    }
+                } );
+            mTimer.start();
+        }
+
+        private void touchTimer()
+        {
+            if ( null != mTimer ) {
+                mTimer.touch();
             }
         }
 
-        abstract void getBytesFrom( int offset, byte[] outbuf );
+        // Fill len bytes of outbuf starting at outOffset
+        abstract void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len );
 
         byte[] makeNext()
         {
-            int offset = mMaxPacketLen * mNextPacket;
-            int totalLen = getTotalToSend();
-            int len = Math.min( mMaxPacketLen, totalLen - offset );
-            byte[] packet = new byte[len];
+            byte[] result;
+            if ( mVersion < VERSION_2 ) {
+                result = makeNextV1();
+            } else if ( mNextPacket < 0 ) {
+                result = makeSignatures( mSizer.getSize() );
+            } else if ( null != mDeflater ) {
+                result = makeNextV2Deflated( mSizer.getSize() );
+            } else {
+                result = makeNextV2( mSizer.getSize() );
+            }
+            return result;
+        }
+
+        private byte[] makeNextV1()
+        {
+            int len = packetLen( mNextPacket );
+            ByteBuffer apdu = getApduBuf( HASH_LEN + len, len == mMaxPacketLen );
+            byte[] bytes = apdu.array();
+
+            getBytesFrom( (long)mMaxPacketLen * mNextPacket, bytes, HASH_LEN, len );
+            apdu.putInt( 0, hashOf( bytes, HASH_LEN, len ) );
+            return bytes;
+        }
+
+        // As many of the wanted packets as fit in maxLen
+        private byte[] makeNextV2( int maxLen )
+        {
+            int apduLen = 1;
+            int count = 0;
+            int nRecords = 0;
+            boolean full = false;
+            for ( int ii = 0; ii < WINDOW && !full; ++ii ) {
+                if ( 0 != (mWindow[ii / 8] & (1 << (ii % 8))) ) {
+                    int packetNo = mNextPacket + ii;
+                    boolean endsChunk = 0 <= chunkEndedBy( packetNo );
+                    int recordLen = RECORD_HEADER_LEN + packetLen( packetNo )
+                        + (endsChunk ? CHUNK_RECORD_LEN : 0);
+                    full = apduLen + recordLen > maxLen;
+                    if ( !full ) {
+                        apduLen += recordLen;
+                        mBatch[count++] = packetNo;
+                        nRecords += endsChunk ? 2 : 1;
+                    }
+                }
+            }
+
+            // Usually the same length as last time
+            ByteBuffer apdu = getApduBuf( apduLen, full );
+            byte[] bytes = apdu.array();
+            apdu.clear();
+            apdu.put( (byte)nRecords );
+            for ( int ii = 0; ii < count; ++ii ) {
+                int packetNo = mBatch[ii];
+                int len = packetLen( packetNo );
+                apdu.put( (byte)0 ); // flags
+                apdu.putInt( packetNo );
+                apdu.putShort( (short)len );
+                int hashPos = apdu.position();
+                int payloadPos = hashPos + HASH_LEN;
+                getBytesFrom( (long)mMaxPacketLen * packetNo, bytes, payloadPos, len );
+                apdu.putInt( packetHash( bytes, payloadPos, len ) );
+                apdu.position( payloadPos + len );
+                putChunkHash( apdu, chunkEndedBy( packetNo ) );
+            }
+            Assert.assertTrue( !apdu.hasRemaining() );
+            return bytes;
+        }
+
+        // Like makeNextV2(), but packets that shrink are sent deflated. How
+        // many fit isn't known until they're compressed, so records are
+        // built in mStaging, allocated at maxLen once, and what's used of
+        // it sent.
+        private byte[] makeNextV2Deflated( int maxLen )
+        {
+            if ( null == mStaging || mStaging.capacity() != maxLen ) {
+                mStaging = ByteBuffer.allocate( maxLen );
+            }
+            if ( null == mRaw || mRaw.length != mMaxPacketLen ) {
+                mRaw = new byte[mMaxPacketLen];
+                mDeflated = new byte[mMaxPacketLen];
+            }
+            byte[] staging = mStaging.array();
+            mStaging.clear();
+            mStaging.put( (byte)0 ); // count, set below
+            int count = 0;
+            for ( int ii = 0; ii < WINDOW; ++ii ) {
+                if ( 0 != (mWindow[ii / 8] & (1 << (ii % 8))) ) {
+                    int packetNo = mNextPacket + ii;
+                    int chunk = chunkEndedBy( packetNo );
+                    int chunkLen = 0 <= chunk ? CHUNK_RECORD_LEN : 0;
+                    // What's left for the payload. Don't read or deflate a
+                    // packet there's no room for.
+                    int room = mStaging.remaining() - RECORD_HEADER_LEN - chunkLen;
+                    if ( room <= 0 ) {
+                        break;
+                    }
+                    int len = packetLen( packetNo );
+                    getBytesFrom( (long)mMaxPacketLen * packetNo, mRaw, 0, len );
+                    int deflatedLen = deflate( len, Math.min( len, room ) );
+                    if ( deflatedLen < 0 && room < len ) {
+                        break;
+                    }
+                    byte[] payload = 0 < deflatedLen ? mDeflated : mRaw;
+                    int payloadLen = 0 < deflatedLen ? deflatedLen : len;
+                    mStaging.put( 0 < deflatedLen ? FLAG_DEFLATED : 0 );
+                    mStaging.putInt( packetNo );
+                    mStaging.putShort( (short)payloadLen );
+                    mStaging.putInt( packetHash( mRaw, 0, len ) ); // of what's stored
+                    mStaging.put( payload, 0, payloadLen );
+                    ++count;
+                    if ( 0 <= chunk ) {
+                        putChunkHash( mStaging, chunk );
+                        ++count;
+                    }
+                }
+            }
+            staging[0] = (byte)count;
+
+            int apduLen = mStaging.position();
+            return apduLen == staging.length ? staging : Arrays.copyOf( staging, apduLen );
+        }
+
+        // As many of the wanted signature groups as fit in maxLen (OPT_DELTA).
+        // With none wanted the receiver's still looking, and this is just a
+        // poll.
+        private byte[] makeSignatures( int maxLen )
+        {
+            int nPackets = (int)((getTotalToSend() + mMaxPacketLen - 1) / mMaxPacketLen);
+            int perGroup = Delta.sigsPerGroup( mMaxPacketLen );
+            int firstGroup = -1 - mNextPacket;
+            int apduLen = 1;
+            int count = 0;
+            for ( int ii = 0; ii < WINDOW; ++ii ) {
+                if ( 0 != (mWindow[ii / 8] & (1 << (ii % 8))) ) {
+                    int group = firstGroup + ii;
+                    int nSigs = Math.min( perGroup, nPackets - group * perGroup );
+                    int recordLen = RECORD_HEADER_LEN + nSigs * Delta.SIG_LEN;
+                    if ( apduLen + recordLen > maxLen ) {
+                        break;
+                    }
+                    apduLen += recordLen;
+                    mBatch[count++] = group;
+                }
+            }
+
+            if ( null == mSigDigest ) {
+                mSigDigest = newMd5();
+            }
+            if ( null == mRaw || mRaw.length != mMaxPacketLen ) {
+                mRaw = new byte[mMaxPacketLen];
+                mDeflated = new byte[mMaxPacketLen];
+            }
+            ByteBuffer apdu = getApduBuf( apduLen, false );
+            byte[] bytes = apdu.array();
+            apdu.clear();
+            apdu.put( (byte)count );
+            for ( int ii = 0; ii < count; ++ii ) {
+                int group = mBatch[ii];
+                int first = group * perGroup;
+                int nSigs = Math.min( perGroup, nPackets - first );
+                apdu.put( FLAG_SIGNATURES );
+                apdu.putInt( group );
+                apdu.putShort( (short)(nSigs * Delta.SIG_LEN) );
+                int hashPos = apdu.position();
+                apdu.position( hashPos + HASH_LEN );
+                for ( int packetNo = first; packetNo < first + nSigs; ++packetNo ) {
+                    int len = packetLen( packetNo );
+                    getBytesFrom( (long)mMaxPacketLen * packetNo, mRaw, 0, len );
+                    Delta.putSignature( apdu, mSigDigest, mRaw, 0, len );
+                }
+                int payloadPos = hashPos + HASH_LEN;
+                apdu.putInt( hashPos, packetHash( bytes, payloadPos,
+                                                  apdu.position() - payloadPos ) );
+            }
+            Assert.assertTrue( !apdu.hasRemaining() );
+            return bytes;
+        }
+
+        // Deflate len bytes of mRaw into mDeflated, returning the new
+        // length, or -1 if it didn't get smaller or wouldn't fit in maxOut.
+        // Runs of packets that don't shrink are skipped over without trying.
+        private int deflate( int len, int maxOut )
+        {
+            int result = -1;
+            if ( 0 < mDeflateSkip ) {
+                --mDeflateSkip;
+            } else {
+                mDeflater.reset();
+                mDeflater.setInput( mRaw, 0, len );
+                mDeflater.finish();
+                int deflatedLen = mDeflater.deflate( mDeflated, 0, maxOut );
+                if ( mDeflater.finished() && deflatedLen < len ) {
+                    result = deflatedLen;
+                    mDeflateBackoff = 1;
+                } else if ( maxOut < len ) {
+                    // Ran out of room; says nothing about the data
+                } else {
+                    mDeflateSkip = mDeflateBackoff;
+                    mDeflateBackoff = Math.min( WINDOW, mDeflateBackoff * 2 );
+                }
+            }
+            return result;
+        }
+
+        private int packetLen( int packetNo )
+        {
+            return (int)Math.min( mMaxPacketLen, getTotalToSend() - (long)mMaxPacketLen * packetNo );
+        }
+
+        // The chunk packetNo completes, if that chunk's hash goes with it;
+        // else -1. Everything before mNextPacket has arrived and the window
+        // says what's wanted after, so a chunk ending inside the window is
+        // whole once its last wanted packet arrives. A chunk that's being
+        // resent (e.g. because its hash was lost with the link, or it failed
+        // its check) gets its hash again that way.
+        private int chunkEndedBy( int packetNo )
+        {
+            int result = -1;
+            if ( 0 != (mOptions & OPT_CHUNK_HASHES) ) {
+                int chunk = packetNo / CHUNK_PACKETS;
+                int nPackets = (int)((getTotalToSend() + mMaxPacketLen - 1) / mMaxPacketLen);
+                int end = Math.min( nPackets, (chunk + 1) * CHUNK_PACKETS );
+                if ( end <= mNextPacket + WINDOW ) {
+                    result = chunk;
+                    for ( int later = packetNo + 1; later < end; ++later ) {
+                        int ii = later - mNextPacket;
+                        if ( 0 != (mWindow[ii / 8] & (1 << (ii % 8))) ) {
+                            result = -1;
+                            break;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void putChunkHash( ByteBuffer buf, int chunk )
+        {
+            if ( 0 <= chunk ) {
+                byte[] hash = getChunkHash( chunk );
+                buf.put( FLAG_CHUNK_HASH );
+                buf.putInt( chunk );
+                buf.putShort( (short)hash.length );
+                buf.putInt( packetHash( hash, 0, hash.length ) );
+                buf.put( hash );
+            }
+        }
+
+        private byte[] getChunkHash( int chunk )
+        {
+            int nPackets = (int)((getTotalToSend() + mMaxPacketLen - 1) / mMaxPacketLen);
+            int nChunks = (nPackets + CHUNK_PACKETS - 1) / CHUNK_PACKETS;
+            if ( null == mChunkHashes || mChunkHashes.length != nChunks
+                 || mChunkBuf.length != mMaxPacketLen ) {
+                mChunkHashes = new byte[nChunks][];
+                mChunkBuf = new byte[mMaxPacketLen];
+                mChunkDigest = newMd5();
+            }
+            if ( null == mChunkHashes[chunk] ) {
+                mChunkDigest.reset();
+                int end = Math.min( nPackets, (chunk + 1) * CHUNK_PACKETS );
+                for ( int packetNo = chunk * CHUNK_PACKETS; packetNo < end; ++packetNo ) {
+                    int len = packetLen( packetNo );
+                    getBytesFrom( (long)mMaxPacketLen * packetNo, mChunkBuf, 0, len );
+                    mChunkDigest.update( mChunkBuf, 0, len );
+                }
+                mChunkHashes[chunk] = mChunkDigest.digest();
+            }
+            return mChunkHashes[chunk];
+        }
 
-            getBytesFrom( offset, packet );
+        private int packetHash( byte[] bytes, int offset, int len )
+        {
+            return mVersion >= VERSION_3 ? crcOf( mCrc, bytes, offset, len )
+                : hashOf( bytes, offset, len );
+        }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            addBytesWithHash( baos, packet );
-            return baos.toByteArray();
+        // The steady-state APDU lengths get their own buffers so they're
+        // never reallocated; anything else shares the other one
+        private ByteBuffer getApduBuf( int apduLen, boolean steady )
+        {
+            ByteBuffer result;
+            if ( steady ) {
+                // Most recently used first
+                if ( null == mFullApdus[0] || mFullApdus[0].capacity() != apduLen ) {
+                    ByteBuffer other = mFullApdus[1];
+                    mFullApdus[1] = mFullApdus[0];
+                    mFullApdus[0] = null != other && other.capacity() == apduLen
+                        ? other : ByteBuffer.allocate( apduLen );
+                }
+                result = mFullApdus[0];
+            } else {
+                if ( null == mLastApdu || mLastApdu.capacity() != apduLen ) {
+                    mLastApdu = ByteBuffer.allocate( apduLen );
+                }
+                result = mLastApdu;
+            }
+            return result;
         }
 
         @Override
@@ -217,67 +685,182 @@ class NFCUtils {
             IsoDep isoDep = IsoDep.get( tag );
             try {
                 isoDep.connect();
-                mLastConnect = System.currentTimeMillis();
-                mMaxPacketLen = isoDep.getMaxTransceiveLength();
-                if ( MY_MAX < mMaxPacketLen ) {
-                    mMaxPacketLen = MY_MAX;
+                runSession( new IsoDepTransceiver( isoDep ) );
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "got ioe: " + ioe.getMessage() );
+            }
+        }
+
+        // Everything after the connect, done against a Transceiver so it can
+        // be driven by something other than a real tag (see LoopbackLink).
+        // Usually one first APDU and what follows; more if startNextBatch()
+        // says so.
+        void runSession( Transceiver link )
+        {
+            // How much there is isn't known until completeFirst()
+            mMetrics = Metrics.start( true, 0, ++mNSessions );
+            byte[] out = null;
+            try {
+                touchTimer();
+                int linkMax = link.getMaxTransceiveLength();
+                mFirstMax = Math.min( MY_MAX, linkMax );
+                // Packets are sized so one always fits in a VERSION_2 APDU
+                // no bigger than MY_MAX, with its chunk's hash if offered
+                int reserved = 0 != (moreOptions() & OPT_CHUNK_HASHES) ? CHUNK_RECORD_LEN : 0;
+                mMaxPacketLen = mFirstMax - 1 - RECORD_HEADER_LEN - reserved;
+                if ( null == mSizer ) {
+                    mSizer = new ApduSizer( MY_MAX, linkMax,
+                                            link.isExtendedLengthApduSupported() );
                 }
-                mMaxPacketLen -= HASH_LEN;
-                Log.d( TAG, "onTagDiscovered() connected; max len: %d", mMaxPacketLen );
+                Log.d( TAG, "runSession() connected; max len: %d", mMaxPacketLen );
 
                 byte[] aidBytes = hexStr2ba( BuildConfig.NFC_AID );
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                baos.write( HEADER );
-                baos.write( (byte)aidBytes.length );
-                baos.write( aidBytes );
-                baos.write( VERSION_1 ); // min
-                baos.write( VERSION_1 ); // max
-
-                byte[] out = completeFirst( baos );
-                for ( ; ; ) {
-                    byte[] response = isoDep.transceive( out );
-                    if ( !processResponse( response ) ) {
-                        break;
+                do {
+                    mVersion = VERSION_1;
+                    mOptions = 0;
+                    if ( null != mDeflater ) {
+                        mDeflater.end();
+                        mDeflater = null;
                     }
-                    out = makeNext();
-                    mLastConnect = System.currentTimeMillis();
-                }
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    baos.write( HEADER );
+                    baos.write( (byte)aidBytes.length );
+                    baos.write( aidBytes );
+                    baos.write( minVersion() );
+                    baos.write( VERSION_MAX ); // max
+
+                    // Null means there's nothing we can send, e.g. an unreadable file
+                    if ( null == completeFirst( baos ) ) {
+                        throw new IOException( "unable to build first APDU" );
+                    }
+                    mMetrics.setTotal( getProgressTotal() );
+                    // Options can only be used with VERSION_2 records
+                    baos.write( (worthCompressing() ? OPT_DEFLATE : 0) | moreOptions() );
+                    out = baos.toByteArray();
+                    boolean first = true;
+                    for ( ; ; ) {
+                        long start = System.nanoTime();
+                        byte[] response = link.transceive( out );
+                        long elapsed = System.nanoTime() - start;
+                        mMetrics.onApdu( out.length, response.length, elapsed );
+                        byte version = mVersion;
+                        if ( !processResponse( response ) ) {
+                            break;
+                        }
+                        if ( first ) {
+                            first = false;
+                            if ( 0 != (mOptions & OPT_DEFLATE) ) {
+                                mDeflater = new Deflater( Deflater.BEST_SPEED );
+                            }
+                            if ( mVersion >= VERSION_2 ) {
+                                // What worked with this peer before, else the
+                                // best seen this send
+                                int size = ApduSizer.load( mActivity, mPeerId );
+                                mSizer.startAt( 0 == size ? mSizer.getBest() : size );
+                            }
+                        } else if ( version >= VERSION_2 && 1 < out.length ) {
+                            // Empty polls, while a receiver's busy, say
+                            // nothing about what size works
+                            mSizer.onSuccess( out.length, elapsed );
+                        }
+                        out = makeNext();
+                        touchTimer();
+                    }
+                } while ( startNextBatch() );
 
-                isoDep.close();
+                link.close();
 
                 stop();
             } catch ( IOException ioe ) {
                 Log.e( TAG, "got ioe: " + ioe.getMessage() );
+                mMetrics.onDrop();
+                if ( null != out && mVersion >= VERSION_2 ) {
+                    mSizer.onFailure( out.length );
+                }
+            }
+
+            if ( null != mDeflater ) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+            mMetrics.end();
+
+            if ( mVersion >= VERSION_2 ) {
+                int best = mSizer.getBest();
+                Log.d( TAG, "runSession(): best APDU size for peer %08x: %d",
+                       mPeerId, best );
+                ApduSizer.save( mActivity, mPeerId, best );
             }
         }
 
-        private boolean processResponse( byte[] response )
+        // Size of the APDUs currently being built, for VERSION_2 receivers
+        int getApduSize()
         {
-            boolean shouldContinue = false;
-            try {
-                ByteArrayInputStream bais = new ByteArrayInputStream( response );
-                byte[] status = new byte[NFCCardService.STATUS_SUCCESS.length];
-                bais.read( status );
-                shouldContinue = Arrays.equals( status, NFCCardService.STATUS_SUCCESS );
-                if ( shouldContinue ) {
-                    int totalAvail = getTotalToSend();
-                    int totalReceived = readInt( bais );
-                    int nextPacket = readInt( bais );
-                    mNextPacket = nextPacket;
-                    shouldContinue = totalReceived < totalAvail;
-                    if ( shouldContinue ) {
-                        callbacks().onProgressMade( totalReceived, totalAvail );
+            return null == mSizer ? MY_MAX : mSizer.getSize();
+        }
+
+        boolean processResponse( byte[] response )
+        {
+            boolean shouldContinue = startsWith( response, NFCCardService.STATUS_SUCCESS );
+            if ( !shouldContinue ) {
+                // receiver said no
+            } else if ( response.length < RESPONSE_LEN ) {
+                Log.e( TAG, "processResponse: short response: %s", hexDump( response ) );
+                Assert.fail();
+                shouldContinue = false;
+            } else {
+                long totalAvail = getTotalToSend();
+                int offset = NFCCardService.STATUS_SUCCESS.length;
+                long totalReceived = getInt( response, offset );
+                int nextPacket = getInt( response, offset + 4 );
+                mNextPacket = nextPacket;
+                // A VERSION_1 receiver's responses stop here
+                if ( RESPONSE_LEN_V2 <= response.length ) {
+                    offset = RESPONSE_LEN;
+                    mVersion = response[offset++];
+                    mOptions = response[offset++];
+                    mPeerId = getInt( response, offset );
+                    offset += 4;
+                    int window = getShort( response, offset );
+                    offset += 2;
+                    Assert.assertTrue( window == WINDOW );
+                    System.arraycopy( response, offset, mWindow, 0, mWindow.length );
+                    offset += mWindow.length;
+                    // The int above is capped; this is the real count
+                    if ( VERSION_4 <= mVersion && RESPONSE_LEN_V4 <= response.length ) {
+                        totalReceived = getLong( response, offset );
                     }
                 }
-            } catch ( IOException ioe ) {
-                Log.e( TAG, "processResponse: ioe: %s", ioe );
-                Assert.fail();
+                // Null when driven without runSession(), as by benchmarks
+                if ( null != mMetrics ) {
+                    mMetrics.onProgress( getProgressBase() + totalReceived );
+                }
+                shouldContinue = totalReceived < totalAvail;
+                if ( shouldContinue ) {
+                    reportProgress( getProgressBase() + totalReceived,
+                                    getProgressTotal() );
+                } else {
+                    mSendSucceeded = totalReceived == totalAvail;
+                }
             }
             return shouldContinue;
         }
 
+        // Callbacks take ints, so scale both down together till they fit
+        private void reportProgress( long cur, long total )
+        {
+            while ( Integer.MAX_VALUE < total ) {
+                cur >>= 10;
+                total >>= 10;
+            }
+            callbacks().onProgressMade( (int)cur, (int)total );
+        }
+
         void stop()
         {
+            if ( null != mTimer ) {
+                mTimer.cancel();
+            }
             synchronized( sSender ) {
                 if ( this == sSender[0] ) {
                     NfcAdapter
@@ -289,19 +872,65 @@ class NFCUtils {
             }
         }
 
-        boolean stopped()
+        boolean succeeded() { return mSendSucceeded; }
+    }
+
+    // What Sender needs from the link. In the app it's IsoDep; host-side
+    // benchmarks use LoopbackLink instead.
+    interface Transceiver {
+        byte[] transceive( byte[] data ) throws IOException;
+        int getMaxTransceiveLength();
+        boolean isExtendedLengthApduSupported();
+        void close() throws IOException;
+    }
+
+    private static class IsoDepTransceiver implements Transceiver {
+        private IsoDep mIsoDep;
+
+        IsoDepTransceiver( IsoDep isoDep ) { mIsoDep = isoDep; }
+
+        @Override
+        public byte[] transceive( byte[] data ) throws IOException
+        {
+            return mIsoDep.transceive( data );
+        }
+
+        @Override
+        public int getMaxTransceiveLength() { return mIsoDep.getMaxTransceiveLength(); }
+
+        @Override
+        public boolean isExtendedLengthApduSupported()
         {
-            synchronized ( sSender ) {
-                return sSender[0] != this;
-            }
+            return mIsoDep.isExtendedLengthApduSupported();
         }
+
+        @Override
+        public void close() throws IOException { mIsoDep.close(); }
     }
 
+    // Sends the type, label and text as writeUTF() would, unless the text's
+    // too long for that, when it goes as CHUNKED_CLIP: its length in chars,
+    // then a writeUTF() for each CHUNK_CHARS of it. Either way the text's
+    // encoded a writeUTF() at a time: once to size and sum it, then again
+    // as packets need it, so there's never more than one chunk's bytes
+    // around.
     private static class ClipSender extends Sender {
+        // At most 3 bytes a char, so always within writeUTF()'s 64K
+        private static final int CHUNK_CHARS = 16 * 1024;
+        private static final int MAX_UTF_LEN = 0xFFFF;
+
         private String mType;
         private String mLabel;
-        private ClipData.Item mData;
-        private byte[] mDataBuf;   // the whole thing we want to send
+        private CharSequence mText;
+        private boolean mChunked;
+        private int mChunkChars;
+        private byte[] mPrefix;     // the type and label, and for CHUNKED_CLIP the length
+        private long[] mChunkStarts;
+        private long mTotalLen;
+        private String mSum;
+        private int mCurChunk = -1;
+        private byte[] mChunkBytes;
+        private ByteArrayOutputStream mChunkStream = new ByteArrayOutputStream();
 
         private ClipSender( Activity activity, Callbacks callbacks, String mimeType, String label,
                             ClipData.Item data )
@@ -309,7 +938,9 @@ class NFCUtils {
             super( activity, callbacks );
             mType = mimeType;
             mLabel = label;
-            mData = data;
+            mText = data.coerceToText( activity );
+            mChunked = MAX_UTF_LEN < utfLength( mText );
+            mChunkChars = mChunked ? CHUNK_CHARS : Math.max( 1, mText.length() );
             mNextPacket = -1;
         }
 
@@ -318,14 +949,12 @@ class NFCUtils {
         {
             byte[] result = null;
             try {
-                ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                write( dataStream, null == mType ? "" : mType );
-                write( dataStream, null == mLabel ? "" : mLabel );
-                write( dataStream, mData.coerceToText(activity()).toString() );
-                mDataBuf = dataStream.toByteArray();
-
-                String sum = getMd5Sum( mDataBuf );
-                MultiPartReceiver.writeHeader( baos, CLIP, mDataBuf.length, mMaxPacketLen, sum );
+                // The same each tap, so done only once
+                if ( null == mSum ) {
+                    encodeAll();
+                }
+                MultiPartReceiver.writeHeader( baos, mChunked ? CHUNKED_CLIP : CLIP,
+                                               mTotalLen, mMaxPacketLen, mSum );
 
                 result = baos.toByteArray();
             } catch ( IOException ioe ) {
@@ -334,73 +963,498 @@ class NFCUtils {
             return result;
         }
 
+        // Older receivers can't take the text in pieces
+        @Override
+        byte minVersion() { return mChunked ? VERSION_5 : VERSION_1; }
+
         @Override
-        int getTotalToSend() { return mDataBuf.length; }
+        long getTotalToSend() { return mTotalLen; }
 
         @Override
-        void getBytesFrom( int offset, byte[] outbuf )
+        boolean worthCompressing() { return !isCompressedType( mType ); }
+
+        @Override
+        void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len )
+        {
+            try {
+                while ( 0 < len ) {
+                    int nCopied;
+                    if ( offset < mPrefix.length ) {
+                        nCopied = (int)Math.min( len, mPrefix.length - offset );
+                        System.arraycopy( mPrefix, (int)offset, outbuf, outOffset, nCopied );
+                    } else {
+                        int chunk = Arrays.binarySearch( mChunkStarts, offset );
+                        if ( chunk < 0 ) {
+                            chunk = -chunk - 2; // the one before the insertion point
+                        }
+                        encodeChunk( chunk );
+                        int inChunk = (int)(offset - mChunkStarts[chunk]);
+                        nCopied = Math.min( len, mChunkBytes.length - inChunk );
+                        System.arraycopy( mChunkBytes, inChunk, outbuf, outOffset, nCopied );
+                    }
+                    offset += nCopied;
+                    outOffset += nCopied;
+                    len -= nCopied;
+                }
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "getBytesFrom(): %s", ioe );
+                Assert.fail();
+            }
+        }
+
+        private void encodeAll() throws IOException
+        {
+            ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+            write( prefix, null == mType ? "" : mType );
+            write( prefix, null == mLabel ? "" : mLabel );
+            if ( mChunked ) {
+                write( prefix, mText.length() );
+            }
+            mPrefix = prefix.toByteArray();
+
+            MessageDigest digest = newMd5();
+            digest.update( mPrefix );
+            int nChunks = (mText.length() + mChunkChars - 1) / mChunkChars;
+            mChunkStarts = new long[Math.max( 1, nChunks )];
+            mTotalLen = mPrefix.length;
+            for ( int ii = 0; ii < mChunkStarts.length; ++ii ) {
+                mChunkStarts[ii] = mTotalLen;
+                encodeChunk( ii );
+                digest.update( mChunkBytes );
+                mTotalLen += mChunkBytes.length;
+            }
+            mSum = digestToStr( digest.digest() );
+            Log.d( TAG, "encodeAll(): %d chars in %d chunks => %d bytes",
+                   mText.length(), mChunkStarts.length, mTotalLen );
+        }
+
+        private void encodeChunk( int chunk ) throws IOException
+        {
+            if ( chunk != mCurChunk ) {
+                int start = chunk * mChunkChars;
+                int end = Math.min( start + mChunkChars, mText.length() );
+                mChunkStream.reset();
+                write( mChunkStream, mText.subSequence( start, end ).toString() );
+                mChunkBytes = mChunkStream.toByteArray();
+                mCurChunk = chunk;
+            }
+        }
+
+        // What writeUTF() would write, less its length
+        private static long utfLength( CharSequence text )
         {
-            System.arraycopy( mDataBuf, offset, outbuf, 0, outbuf.length );
+            long result = 0;
+            for ( int ii = 0; ii < text.length(); ++ii ) {
+                char ch = text.charAt( ii );
+                if ( 0 < ch && ch < 0x80 ) {
+                    ++result;
+                } else if ( ch < 0x800 ) {
+                    result += 2;
+                } else {
+                    result += 3;
+                }
+            }
+            return result;
         }
     } // class ClipSender
 
-    private static class FileSender extends Sender {
+    // A file being sent, mapped if it's not too big. Nothing's opened until
+    // the first read. Its sum is computed in the background, after those of
+    // any files queued before it.
+    static class FileSource {
+        // Files up to this size are mapped; bigger ones get positional reads
+        private static final long MAX_MAPPED = 64 * 1024 * 1024;
+        private static ExecutorService sHasher;
+
         private File mFile;
-        private String mSum;
-        private FileSender( Activity activity, Callbacks callbacks, File file )
+        private FutureTask<String> mSum;
+        private long mFileLen;
+        private FileChannel mChannel;
+        private MappedByteBuffer mMapped;
+        private ByteBuffer mReadBuf;    // wraps the last outbuf read into
+
+        FileSource( final File file )
         {
-            super( activity, callbacks );
             mFile = file;
-            mSum = getMd5Sum( mFile );
+            mFileLen = file.length();
+
+            // The sum's needed only for the first APDU, so compute it while
+            // the user's getting the phones together
+            mSum = new FutureTask<>( new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return getMd5Sum( file );
+                    }
+                } );
+            getHasher().execute( mSum );
         }
 
-        @Override
-        int getTotalToSend() { return (int)mFile.length(); }
+        // One thread, so a batch's files are hashed one at a time, in order
+        private static synchronized ExecutorService getHasher()
+        {
+            if ( null == sHasher ) {
+                sHasher = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                        @Override
+                        public Thread newThread( Runnable runnable ) {
+                            Thread thread = new Thread( runnable, "FileSource" );
+                            thread.setDaemon( true );
+                            return thread;
+                        }
+                    } );
+            }
+            return sHasher;
+        }
 
-        @Override
-        void getBytesFrom( int offset, byte[] outbuf )
+        private void open()
         {
             try {
-                RandomAccessFile raf = new RandomAccessFile( mFile, "r" );
-                raf.seek( offset );
-                raf.readFully( outbuf );
-            } catch ( IOException fnf ) {
+                mChannel = new RandomAccessFile( mFile, "r" ).getChannel();
+                if ( mFileLen <= MAX_MAPPED ) {
+                    mMapped = mChannel.map( FileChannel.MapMode.READ_ONLY, 0, mFileLen );
+                }
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "open(): unable to open %s: %s", mFile, ioe );
                 Assert.fail();
             }
         }
 
-        @Override
-        byte[] completeFirst( ByteArrayOutputStream baos )
+        String getName() { return mFile.getName(); }
+        long getLen() { return mFileLen; }
+
+        // Too big for an int-sized header
+        boolean isLarge() { return Integer.MAX_VALUE < mFileLen; }
+
+        // Null if the file couldn't be read or we were closed first
+        String getSum()
         {
-            byte[] result = null;
+            String result = null;
             try {
-                MultiPartReceiver.writeHeader( baos, FILE, (int)mFile.length(),
-                                               mMaxPacketLen, mSum );
-                
-                write( baos, mFile.getName() );
-
-                result = baos.toByteArray();
-            } catch ( IOException ioe ) {
-                Assert.fail();
+                result = mSum.get();
+            } catch ( InterruptedException | ExecutionException
+                      | CancellationException ex ) {
+                Log.e( TAG, "getSum(): %s", ex );
             }
-            // Log.d( TAG, "completeFirst() => %s", hexDump( result ) );
             return result;
         }
-    } // class FileSender
-
-    private static final String HEX_CHARS = "0123456789ABCDEF";
-    static byte[] hexStr2ba( String data )
-    {
-        data = data.toUpperCase();
-        assert( 0 == data.length() % 2 );
-        byte[] result = new byte[data.length() / 2];
 
-        for ( int ii = 0; ii < data.length(); ii += 2 ) {
-            int one = HEX_CHARS.indexOf(data.charAt(ii));
-            assert one >= 0;
-            int two = HEX_CHARS.indexOf(data.charAt(ii + 1));
-            assert two >= 0;
-            result[ii/2] = (byte)((one << 4) | two);
+        void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len )
+        {
+            if ( null == mChannel ) {
+                open();
+            }
+            if ( null != mMapped ) {
+                mMapped.position( (int)offset );
+                mMapped.get( outbuf, outOffset, len );
+            } else {
+                if ( null == mReadBuf || mReadBuf.array() != outbuf ) {
+                    mReadBuf = ByteBuffer.wrap( outbuf );
+                }
+                mReadBuf.clear();
+                mReadBuf.position( outOffset ).limit( outOffset + len );
+                try {
+                    long position = offset;
+                    while ( mReadBuf.hasRemaining() ) {
+                        int nRead = mChannel.read( mReadBuf, position );
+                        if ( nRead < 0 ) {
+                            throw new EOFException();
+                        }
+                        position += nRead;
+                    }
+                } catch ( IOException ioe ) {
+                    Log.e( TAG, "getBytesFrom(): %s", ioe );
+                    Assert.fail();
+                }
+            }
+        }
+
+        boolean worthCompressing()
+        {
+            String name = mFile.getName();
+            String ext = name.substring( name.lastIndexOf( '.' ) + 1 ).toLowerCase();
+            return !isCompressedType( MimeTypeMap.getSingleton()
+                                      .getMimeTypeFromExtension( ext ) );
+        }
+
+        // Let go of the file until the next read
+        void release()
+        {
+            mMapped = null;
+            mReadBuf = null;
+            if ( null != mChannel ) {
+                try {
+                    mChannel.close();
+                } catch ( IOException ioe ) {
+                    Log.e( TAG, "release(): %s", ioe );
+                }
+                mChannel = null;
+            }
+        }
+
+        void close()
+        {
+            // Don't hash a file that's no longer being sent
+            mSum.cancel( true );
+            release();
+        }
+    } // class FileSource
+
+    static class FileSender extends Sender {
+        private FileSource mSource;
+
+        FileSender( Activity activity, Callbacks callbacks, File file )
+        {
+            super( activity, callbacks );
+            mSource = new FileSource( file );
+        }
+
+        @Override
+        long getTotalToSend() { return mSource.getLen(); }
+
+        @Override
+        void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len )
+        {
+            mSource.getBytesFrom( offset, outbuf, outOffset, len );
+        }
+
+        @Override
+        void stop()
+        {
+            super.stop();
+            mSource.close();
+        }
+
+        // Older receivers can't parse a long size
+        @Override
+        byte minVersion() { return mSource.isLarge() ? VERSION_4 : VERSION_1; }
+
+        @Override
+        byte moreOptions() { return OPT_CHUNK_HASHES | OPT_DELTA; }
+
+        @Override
+        boolean worthCompressing() { return mSource.worthCompressing(); }
+
+        @Override
+        byte[] completeFirst( ByteArrayOutputStream baos )
+        {
+            byte[] result = null;
+            try {
+                String sum = mSource.getSum();
+                if ( null != sum ) {
+                    MultiPartReceiver.writeHeader( baos, FILE, mSource.getLen(),
+                                                   mMaxPacketLen, sum );
+                
+                    write( baos, mSource.getName() );
+
+                    result = baos.toByteArray();
+                }
+            } catch ( IOException ioe ) {
+                Assert.fail();
+            }
+            // Log.d( TAG, "completeFirst() => %s", hexDump( result ) );
+            return result;
+        }
+    } // class FileSender
+
+    // Several files, one after another, in the same sessions. The first
+    // APDU lists as many as fit, from mFirst; each response ends with the
+    // index in that list of the file it's about, which is the first one the
+    // receiver doesn't yet have, or the list's length once it has them all.
+    // Then any files left are listed in another first APDU.
+    static class BatchSender extends Sender {
+        private FileSource[] mSources;
+        private int mFirst;         // this batch's first file
+        private int mCount;         // and how many it has
+        private boolean mMore;      // whether another batch is ready
+        private int mCur;
+        private long mTotalLen;
+        private boolean mHaveLarge;
+
+        BatchSender( Activity activity, Callbacks callbacks, List<File> files )
+        {
+            super( activity, callbacks );
+            mSources = new FileSource[files.size()];
+            for ( int ii = 0; ii < mSources.length; ++ii ) {
+                mSources[ii] = new FileSource( files.get( ii ) );
+                mTotalLen += mSources[ii].getLen();
+                mHaveLarge = mHaveLarge || mSources[ii].isLarge();
+            }
+        }
+
+        @Override
+        long getTotalToSend() { return mSources[mCur].getLen(); }
+
+        @Override
+        void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len )
+        {
+            mSources[mCur].getBytesFrom( offset, outbuf, outOffset, len );
+        }
+
+        // Files before the current one count as done
+        @Override
+        long getProgressBase()
+        {
+            long result = 0;
+            for ( int ii = 0; ii < mCur; ++ii ) {
+                result += mSources[ii].getLen();
+            }
+            return result;
+        }
+
+        @Override
+        long getProgressTotal() { return mTotalLen; }
+
+        // Only receivers this new know about batches, or long sizes
+        @Override
+        byte minVersion() { return mHaveLarge ? VERSION_4 : VERSION_2; }
+
+        @Override
+        byte moreOptions() { return OPT_CHUNK_HASHES | OPT_DELTA; }
+
+        @Override
+        boolean worthCompressing()
+        {
+            boolean result = false;
+            for ( FileSource source : mSources ) {
+                result = result || source.worthCompressing();
+            }
+            return result;
+        }
+
+        @Override
+        boolean processResponse( byte[] response )
+        {
+            boolean result;
+            if ( !startsWith( response, NFCCardService.STATUS_SUCCESS )
+                 || response.length < RESPONSE_LEN + 2 ) {
+                result = super.processResponse( response );
+            } else {
+                int index = getShort( response, response.length - 2 );
+                if ( index >= mCount ) {
+                    mFirst += mCount;
+                    mMore = mFirst < mSources.length;
+                    if ( mMore ) {
+                        moveTo( mFirst );
+                    } else {
+                        setSendSucceeded();
+                    }
+                    result = false;
+                } else {
+                    index += mFirst;
+                    if ( index != mCur ) {
+                        Log.d( TAG, "processResponse(): on to file %d", index );
+                        moveTo( index );
+                    }
+                    result = super.processResponse( response );
+                }
+            }
+            return result;
+        }
+
+        // Only the file being sent is kept open
+        private void moveTo( int index )
+        {
+            mSources[mCur].release();
+            mCur = index;
+            startFile();
+        }
+
+        @Override
+        boolean startNextBatch()
+        {
+            boolean result = mMore;
+            mMore = false;
+            return result;
+        }
+
+        @Override
+        void stop()
+        {
+            super.stop();
+            for ( FileSource source : mSources ) {
+                source.close();
+            }
+        }
+
+        @Override
+        byte[] completeFirst( ByteArrayOutputStream baos )
+        {
+            byte[] result = null;
+            try {
+                // What's left once the command, the two ints and the
+                // options byte are in
+                int room = mFirstMax - baos.size() - 1 - 4 - 4 - 1;
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                ByteArrayOutputStream entry = new ByteArrayOutputStream();
+                boolean haveSums = true;
+                int count = 0;
+                for ( int ii = mFirst; ii < mSources.length; ++ii ) {
+                    FileSource source = mSources[ii];
+                    String sum = source.getSum();
+                    if ( null == sum ) {
+                        haveSums = false;
+                        break;
+                    }
+                    entry.reset();
+                    writeSize( entry, source.getLen() );
+                    write( entry, sum );
+                    write( entry, source.getName() );
+                    // Always at least one, as a lone file would be sent
+                    if ( 0 < count && entries.size() + entry.size() > room ) {
+                        break;
+                    }
+                    entry.writeTo( entries );
+                    ++count;
+                }
+                if ( haveSums ) {
+                    mCount = count;
+                    Log.d( TAG, "completeFirst(): files %d-%d of %d", mFirst,
+                           mFirst + count - 1, mSources.length );
+                    baos.write( BATCH );
+                    write( baos, mMaxPacketLen );
+                    write( baos, count );
+                    entries.writeTo( baos );
+                    result = baos.toByteArray();
+                }
+            } catch ( IOException ioe ) {
+                Assert.fail();
+            }
+            return result;
+        }
+    } // class BatchSender
+
+    // Types whose contents deflate won't shrink
+    static boolean isCompressedType( String mimeType )
+    {
+        boolean result = false;
+        if ( null != mimeType ) {
+            mimeType = mimeType.toLowerCase();
+            result = mimeType.startsWith( "video/" )
+                || (mimeType.startsWith( "image/" ) && !mimeType.contains( "svg" )
+                    && !mimeType.contains( "bmp" ))
+                || (mimeType.startsWith( "audio/" ) && !mimeType.contains( "wav" ))
+                || mimeType.contains( "zip" ) // zip, gzip, epub+zip...
+                || mimeType.contains( "compressed" ) // x-7z-, x-rar-...
+                || mimeType.contains( "openxmlformats" ) // docx etc. are zips
+                || mimeType.equals( "application/x-bzip2" )
+                || mimeType.equals( "application/x-xz" )
+                || mimeType.equals( "application/vnd.android.package-archive" );
+        }
+        return result;
+    }
+
+    private static final String HEX_CHARS = "0123456789ABCDEF";
+    static byte[] hexStr2ba( String data )
+    {
+        data = data.toUpperCase();
+        assert( 0 == data.length() % 2 );
+        byte[] result = new byte[data.length() / 2];
+
+        for ( int ii = 0; ii < data.length(); ii += 2 ) {
+            int one = HEX_CHARS.indexOf(data.charAt(ii));
+            assert one >= 0;
+            int two = HEX_CHARS.indexOf(data.charAt(ii + 1));
+            assert two >= 0;
+            result[ii/2] = (byte)((one << 4) | two);
         }
 
         return result;
@@ -419,6 +1473,52 @@ class NFCUtils {
         return result;
     }
 
+    static int crcOf( Checksum crc, byte[] bytes, int offset, int len )
+    {
+        crc.reset();
+        crc.update( bytes, offset, len );
+        return (int)crc.getValue();
+    }
+
+    // Same result as Arrays.hashCode() on the given range, without the copy
+    static int hashOf( byte[] bytes, int offset, int len )
+    {
+        int result = 1;
+        for ( int end = offset + len; offset < end; ++offset ) {
+            result = 31 * result + bytes[offset];
+        }
+        return result;
+    }
+
+    // Big-endian, like DataInputStream.readInt()
+    static int getInt( byte[] bytes, int offset )
+    {
+        return (bytes[offset] << 24)
+            | ((bytes[offset + 1] & 0xFF) << 16)
+            | ((bytes[offset + 2] & 0xFF) << 8)
+            | (bytes[offset + 3] & 0xFF);
+    }
+
+    static long getLong( byte[] bytes, int offset )
+    {
+        return ((long)getInt( bytes, offset ) << 32)
+            | (getInt( bytes, offset + 4 ) & 0xFFFFFFFFL);
+    }
+
+    static int getShort( byte[] bytes, int offset )
+    {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    static boolean startsWith( byte[] bytes, byte[] prefix )
+    {
+        boolean result = null != bytes && bytes.length >= prefix.length;
+        for ( int ii = 0; result && ii < prefix.length; ++ii ) {
+            result = bytes[ii] == prefix[ii];
+        }
+        return result;
+    }
+
     static void write( ByteArrayOutputStream stream, String str ) throws IOException
     {
         DataOutputStream dos = new DataOutputStream(stream);
@@ -441,6 +1541,18 @@ class NFCUtils {
         dos.flush();
     }
 
+    // An int when it'll fit, else LONG_SIZE and a long, so headers small
+    // files' receivers parse are unchanged
+    static void writeSize( ByteArrayOutputStream stream, long size ) throws IOException
+    {
+        if ( size <= Integer.MAX_VALUE ) {
+            write( stream, (int)size );
+        } else {
+            write( stream, LONG_SIZE );
+            write( stream, size );
+        }
+    }
+
     static String readString( ByteArrayInputStream stream ) throws IOException
     {
         DataInputStream dis = new DataInputStream(stream);
@@ -461,197 +1573,480 @@ class NFCUtils {
         return dis.readLong();
     }
 
+    static long readSize( ByteArrayInputStream stream ) throws IOException
+    {
+        long result = readInt( stream );
+        if ( LONG_SIZE == result ) {
+            result = readLong( stream );
+        }
+        return result;
+    }
+
     abstract static class Receiver {
         abstract byte[] receiveFirst();
         abstract byte[] receive( byte[] apdu );
+        // Called once the response to an APDU is on its way, to do anything
+        // that needn't delay it
+        void onResponseSent() {}
+        // The link's gone; nothing more will be received
+        void close() {}
     }
 
-    private static abstract class MultiPartReceiver extends Receiver {
+    abstract static class MultiPartReceiver extends Receiver {
         Context mContext;
-        int mEventualSize;
+        long mEventualSize;
         int mMaxPacketLen;
         int mPacketCount;       // how many packets will it take?
         String mSum;
         int mNextPacket;
-
-        MultiPartReceiver( Context context, ByteArrayInputStream bais )
+        byte mVersion;
+        byte mOptions;
+        private int mInstallId;
+        private Inflater mInflater;
+        private byte[] mInflated;
+        private Checksum mCrc;
+        // Every success response is the same length, so it's built in place
+        private ByteBuffer mResponse;
+        private Metrics.Session mMetrics;
+
+        MultiPartReceiver( Context context, byte version, ByteArrayInputStream bais )
         {
-            mContext = context;
+            this( context, version );
             try {
-                mEventualSize = readInt( bais );
-                mMaxPacketLen = readInt( bais );
-                mPacketCount = (mEventualSize + mMaxPacketLen - 1) / mMaxPacketLen;
-                mSum = readString( bais );
-                Log.d( TAG, "MultiPartReceiver(): read len %d, maxLen %d, sum: %s",
-                       mEventualSize, mMaxPacketLen, mSum );
+                long eventualSize = readSize( bais );
+                int maxPacketLen = readInt( bais );
+                setSizes( eventualSize, maxPacketLen, readString( bais ) );
             } catch ( IOException ioe ) {
                 Assert.fail();
             }
         }
 
-        abstract void writeRequest( ByteArrayOutputStream baos ) throws IOException;
+        // What a BATCH manifest says about one file
+        MultiPartReceiver( Context context, byte version, long eventualSize,
+                           int maxPacketLen, String sum )
+        {
+            this( context, version );
+            setSizes( eventualSize, maxPacketLen, sum );
+        }
+
+        private MultiPartReceiver( Context context, byte version )
+        {
+            mContext = context;
+            mVersion = version;
+            mInstallId = getInstallId( context );
+            if ( version >= VERSION_3 ) {
+                mCrc = Crc32c.make();
+            }
+            mResponse = ByteBuffer.allocate( version >= VERSION_4 ? RESPONSE_LEN_V4
+                                             : version >= VERSION_2 ? RESPONSE_LEN_V2
+                                             : RESPONSE_LEN );
+        }
+
+        private void setSizes( long eventualSize, int maxPacketLen, String sum )
+        {
+            mEventualSize = eventualSize;
+            mMaxPacketLen = maxPacketLen;
+            mPacketCount = (int)((mEventualSize + mMaxPacketLen - 1) / mMaxPacketLen);
+            mSum = sum;
+            Log.d( TAG, "MultiPartReceiver(): len %d, maxLen %d, sum: %s",
+                   mEventualSize, mMaxPacketLen, mSum );
+        }
+
+        abstract long getNBytesReceived();
+        abstract int getNextPacketSought();
         Context context() { return mContext; }
 
+        byte supportedOptions() { return OPTS_SUPPORTED; }
+
+        // From a record flagged FLAG_CHUNK_HASH
+        void storeChunkHash( int chunk, byte[] buf, int offset, int len ) {}
+
+        // From a record flagged FLAG_SIGNATURES
+        void storeSignatures( int group, byte[] buf, int offset, int len ) {}
+
+        // Whatever follows the header and anything subclasses read after it
+        void readOptions( ByteArrayInputStream bais )
+        {
+            setOptions( bais.read() );
+        }
+
+        // What the sender offered, or -1 if it said nothing
+        void setOptions( int offered )
+        {
+            if ( 0 < offered && mVersion >= VERSION_2 ) {
+                mOptions = (byte)(offered & supportedOptions());
+            }
+            if ( 0 != (mOptions & OPT_DEFLATE) ) {
+                mInflater = new Inflater();
+                mInflated = new byte[mMaxPacketLen];
+            }
+        }
+
+        @Override
+        void close()
+        {
+            if ( null != mInflater ) {
+                mInflater.end();
+                mInflater = null;
+            }
+            if ( null != mMetrics ) {
+                mMetrics.end();
+            }
+        }
+
+        // Called with mNextPacket current. Receivers that can take packets
+        // out of order will want to say more.
+        boolean isWanted( int packetNo )
+        {
+            return packetNo >= mNextPacket && packetNo < mPacketCount;
+        }
+
+        // Whether to set window bit offset in the response. Receivers whose
+        // window isn't over packets (OPT_DELTA) say otherwise.
+        boolean isInWindow( int offset )
+        {
+            return isWanted( mNextPacket + offset );
+        }
+
+        // Whether a packet that's arrived can be stored now. By default
+        // packets are stored strictly in order.
+        boolean canStore( int packetNo )
+        {
+            return packetNo == getNextPacketSought();
+        }
+
         @Override
         byte[] receiveFirst()
         {
             Log.d( TAG, "receiveFirst()" );
-            byte[] result = null;
-            try {
-                checkFinished();
-
-                // Called after the initial packet checks out. We need to write
-                // back what we want/need
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                baos.write( NFCCardService.STATUS_SUCCESS );
-                writeRequest( baos );
-                result = baos.toByteArray();
-            } catch ( IOException ioe ) {
-                Assert.fail();
-            }
+            checkFinished();
+
+            // Called after the initial packet checks out. We need to write
+            // back what we want/need
+            byte[] result = makeResponse();
+            // Which tap this is isn't known here, but whether it's resuming is
+            mMetrics = Metrics.start( false, mEventualSize, 0 );
+            onResponse( 0, result, 0 );
             return result;
         }
 
-        abstract void store( int packetNo, byte[] packet ) throws IOException;
+        // Store len bytes of buf starting at offset
+        abstract void store( int packetNo, byte[] buf, int offset, int len ) throws IOException;
         abstract void checkFinished();
 
         @Override
         byte[] receive( byte[] apdu )
         {
-            byte[] result = null;
-            try {
-                ByteArrayInputStream bais = new ByteArrayInputStream( apdu );
-                int hash = readInt( bais );
-                byte[] rest = new byte[bais.available()];
-                bais.read( rest );
-                int restHash = Arrays.hashCode( rest );
-
-                ByteArrayOutputStream response = new ByteArrayOutputStream();
-            
-                if ( restHash == hash ) {
-                    store( mNextPacket, rest );
-                    // mBuffer.write( rest );
-                    checkFinished();
+            long start = System.nanoTime();
+            byte[] result = mVersion >= VERSION_2 ? receiveV2( apdu ) : receiveV1( apdu );
+            onResponse( apdu.length, result, System.nanoTime() - start );
+            return result;
+        }
+
+        // The response says how much there is so far. There's no session
+        // when driven without receiveFirst(), as by benchmarks.
+        private void onResponse( int apduLen, byte[] response, long nanos )
+        {
+            if ( null != mMetrics ) {
+                if ( 0 < apduLen ) {
+                    mMetrics.onApdu( apduLen, response.length, nanos );
+                }
+                if ( startsWith( response, NFCCardService.STATUS_SUCCESS ) ) {
+                    mMetrics.onProgress( getInt( response,
+                                                 NFCCardService.STATUS_SUCCESS.length ) );
+                }
+            }
+        }
+
+        private byte[] receiveV1( byte[] apdu )
+        {
+            byte[] result = NFCCardService.STATUS_FAILED;
+            if ( apdu.length < HASH_LEN ) {
+                Log.e( TAG, "receive(): short apdu: %s", hexDump( apdu ) );
+            } else {
+                int hash = getInt( apdu, 0 );
+                int restLen = apdu.length - HASH_LEN;
+                int restHash = hashOf( apdu, HASH_LEN, restLen );
 
-                    response.write( NFCCardService.STATUS_SUCCESS );
-                    writeRequest( response );
+                if ( restHash == hash ) {
+                    try {
+                        store( mNextPacket, apdu, HASH_LEN, restLen );
+                        checkFinished();
+                        result = makeResponse();
+                    } catch ( IOException ioe ) {
+                        Assert.fail();
+                    }
                 } else {
                     Log.e( TAG, "checksums don't match; bailing" );
-                    response.write( NFCCardService.STATUS_FAILED );
                 }
+            }
+            return result;
+        }
 
-                result = response.toByteArray();
+        // Store whatever records check out and are wanted; the rest will be
+        // asked for again
+        private byte[] receiveV2( byte[] apdu )
+        {
+            byte[] result = NFCCardService.STATUS_FAILED;
+            int count = 0 < apdu.length ? apdu[0] & 0xFF : -1;
+            int pos = 1;
+            try {
+                for ( int ii = 0; ii < count; ++ii ) {
+                    if ( apdu.length < pos + RECORD_HEADER_LEN ) {
+                        break;
+                    }
+                    byte flags = apdu[pos];
+                    int packetNo = getInt( apdu, pos + 1 );
+                    int len = getShort( apdu, pos + 5 );
+                    int hash = getInt( apdu, pos + 7 );
+                    pos += RECORD_HEADER_LEN;
+                    if ( apdu.length < pos + len ) {
+                        break;
+                    }
+
+                    receiveRecord( flags, packetNo, hash, apdu, pos, len );
+                    pos += len;
+                }
+                if ( pos != apdu.length ) {
+                    Log.e( TAG, "receiveV2(): malformed apdu" );
+                }
+                checkFinished();
+                result = makeResponse();
             } catch ( IOException ioe ) {
                 Assert.fail();
             }
             return result;
         }
 
+        private void receiveRecord( byte flags, int packetNo, int hash,
+                                    byte[] apdu, int pos, int len )
+            throws IOException
+        {
+            if ( 0 != (flags & FLAG_CHUNK_HASH) ) {
+                if ( hash == packetHash( apdu, pos, len ) ) {
+                    storeChunkHash( packetNo, apdu, pos, len );
+                }
+            } else if ( 0 != (flags & FLAG_SIGNATURES) ) {
+                if ( hash == packetHash( apdu, pos, len ) ) {
+                    storeSignatures( packetNo, apdu, pos, len );
+                }
+            } else {
+                // The hash is of the packet as stored
+                byte[] data = apdu;
+                int dataOffset = pos;
+                int dataLen = len;
+                if ( 0 != (flags & FLAG_DEFLATED) ) {
+                    data = mInflated;
+                    dataOffset = 0;
+                    dataLen = inflate( packetNo, apdu, pos, len );
+                }
+
+                if ( dataLen < 0 || hash != packetHash( data, dataOffset, dataLen ) ) {
+                    Log.e( TAG, "receiveV2(): bad hash for packet %d", packetNo );
+                } else if ( !canStore( packetNo ) ) {
+                    Log.e( TAG, "receiveV2(): dropping unexpected packet %d", packetNo );
+                } else {
+                    store( packetNo, data, dataOffset, dataLen );
+                }
+            }
+        }
+
+        private int packetHash( byte[] bytes, int offset, int len )
+        {
+            return null != mCrc ? crcOf( mCrc, bytes, offset, len )
+                : hashOf( bytes, offset, len );
+        }
+
+        // Inflate into mInflated, returning the length or -1 if the result
+        // isn't a whole packet
+        private int inflate( int packetNo, byte[] buf, int offset, int len )
+        {
+            int result = -1;
+            int expected = (int)Math.min( mMaxPacketLen,
+                                          mEventualSize - (long)packetNo * mMaxPacketLen );
+            if ( null != mInflater && 0 < expected ) {
+                try {
+                    mInflater.reset();
+                    mInflater.setInput( buf, offset, len );
+                    int inflatedLen = mInflater.inflate( mInflated, 0, expected );
+                    if ( mInflater.finished() && inflatedLen == expected ) {
+                        result = inflatedLen;
+                    }
+                } catch ( DataFormatException dfe ) {
+                    Log.e( TAG, "inflate(): %s", dfe );
+                }
+            }
+            return result;
+        }
+
+        private byte[] makeResponse()
+        {
+            mNextPacket = getNextPacketSought();
+            Assert.assertTrue( mNextPacket >= 0 || 0 != (mOptions & OPT_DELTA) );
+
+            mResponse.clear();
+            mResponse.put( NFCCardService.STATUS_SUCCESS );
+            long nReceived = getNBytesReceived();
+            mResponse.putInt( (int)Math.min( nReceived, Integer.MAX_VALUE ) );
+            mResponse.putInt( mNextPacket );
+            if ( mVersion >= VERSION_2 ) {
+                mResponse.put( mVersion );
+                mResponse.put( mOptions );
+                mResponse.putInt( mInstallId );
+                mResponse.putShort( (short)WINDOW );
+                for ( int ii = 0; ii < WINDOW; ii += 8 ) {
+                    int bits = 0;
+                    for ( int jj = 0; jj < 8; ++jj ) {
+                        if ( isInWindow( ii + jj ) ) {
+                            bits |= 1 << jj;
+                        }
+                    }
+                    mResponse.put( (byte)bits );
+                }
+                if ( mVersion >= VERSION_4 ) {
+                    mResponse.putLong( nReceived );
+                }
+            }
+            Assert.assertTrue( !mResponse.hasRemaining() );
+            return mResponse.array();
+        }
+
         private static void writeHeader( ByteArrayOutputStream baos, byte cmd,
-                                         int fullLen, int maxPacketLen, String sum )
+                                         long fullLen, int maxPacketLen, String sum )
             throws IOException
         {
             baos.write( cmd );
-            write( baos, fullLen );
+            writeSize( baos, fullLen );
             write( baos, maxPacketLen );
             write( baos, sum );
         }
     } // pclass MultiPartReceiver
 
-    // We'll keep clip data in memory. We still recover from a partial
-    // transmission as long as the app isn't restarted
-    static Map<String, ByteArrayOutputStream> sPendingClips = new HashMap<>();
-
-    private static ByteArrayOutputStream getBuffer( String sum )
-    {
-        synchronized ( sPendingClips ) {
-            ByteArrayOutputStream baos;
-            if ( !sPendingClips.containsKey( sum ) ) {
-                sPendingClips.put( sum, new ByteArrayOutputStream() );
-            }
-            return sPendingClips.get( sum );
-        }
-    }
+    static class ClipReceiver extends MultiPartReceiver {
+        // Partial clips outlive receivers so a transfer can resume
+        private ClipCache.Entry mBuffer;
+        private boolean mChunked;
 
-    private static void clearBuffer( String sum )
-    {
-        synchronized ( sPendingClips ) {
-            sPendingClips.remove( sum );
+        private ClipReceiver( Context context, byte version, ByteArrayInputStream bais,
+                              boolean chunked )
+        {
+            super( context, version, bais );
+            mChunked = chunked;
+            mBuffer = ClipCache.get( context ).open( mSum );
         }
-    }
 
-    static class ClipReceiver extends MultiPartReceiver {
-        private ByteArrayOutputStream mBuffer;
+        @Override
+        long getNBytesReceived() { return mBuffer.size(); }
 
-        private ClipReceiver( Context context, ByteArrayInputStream bais )
+        @Override
+        void close()
         {
-            super( context, bais );
-            mBuffer = getBuffer( mSum );
+            super.close();
+            ClipCache.get( context() ).release( mBuffer );
         }
 
         @Override
-        void writeRequest( ByteArrayOutputStream baos ) throws IOException
+        int getNextPacketSought()
         {
-            int curPacketCount = mBuffer.size() / mMaxPacketLen;
-            write( baos, mBuffer.size() );
-            mNextPacket = curPacketCount;
-            write( baos, curPacketCount );
-            Log.d( TAG, "writeRequest(): asking for packet %d (of %d)", curPacketCount, mPacketCount );
+            int curPacketCount = (int)(mBuffer.size() / mMaxPacketLen);
+            // Log.d( TAG, "getNextPacketSought(): asking for packet %d (of %d)",
+            //        curPacketCount, mPacketCount );
+            return curPacketCount;
         }
 
         @Override
-        void store( int packetNo, byte[] packet ) throws IOException
+        void store( int packetNo, byte[] buf, int offset, int len ) throws IOException
         {
-            Assert.assertTrue( packetNo == mNextPacket );
-            mBuffer.write( packet );
+            Assert.assertTrue( (long)packetNo * mMaxPacketLen == mBuffer.size() );
+            mBuffer.append( buf, offset, len );
         }
 
+        // Everything's here, so the response can say so; the rest waits
+        // till it's gone
         @Override
         void checkFinished()
         {
             Assert.assertTrue( mBuffer.size() <= mEventualSize );
             if ( mBuffer.size() == mEventualSize ) {
-                byte[] buffer = mBuffer.toByteArray();
-                String sum = getMd5Sum( buffer );
-                if ( ! sum.equals( mSum ) ) {
-                    Log.e( TAG, "checksum mismatch!!!!" );
-                } else {
-                    Log.d( TAG, "checksums match! We got it!!!" );
-                    clearBuffer( mSum );
-
-                    Log.d( TAG, "processing %d bytes", buffer.length );
-                    try {
-                        ByteArrayInputStream bais = new ByteArrayInputStream( buffer );
+                final Context context = context();
+                SideEffects.afterResponse( new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver( context );
+                        }
+                    } );
+            }
+        }
 
-                        String mimeType = readString( bais );
-                        String label = readString( bais );
-                        String data = readString( bais );
-                        Clip.setData( context(), mimeType, label, data );
-                        Notify.post( context(), data );
-                    } catch ( IOException ioe ) {
-                        Log.e( TAG, "processBuffer(): exception: " + ioe );
+        // The text's decoded a chunk at a time as it's read, and summed
+        // along the way, so nothing but it is ever whole in memory. It's
+        // used only if the sum checks out.
+        private void deliver( Context context )
+        {
+            MessageDigest digest = newMd5();
+            String mimeType = null;
+            String label = null;
+            String data = null;
+            try {
+                InputStream in = mBuffer.openStream();
+                try {
+                    DataInputStream dis
+                        = new DataInputStream( new DigestInputStream( in, digest ) );
+                    mimeType = dis.readUTF();
+                    label = dis.readUTF();
+                    if ( mChunked ) {
+                        int nChars = dis.readInt();
+                        // Not yet checked by the sum, but every char took
+                        // at least a byte
+                        if ( nChars < 0 || mEventualSize < nChars ) {
+                            throw new IOException( "bad length: " + nChars );
+                        }
+                        StringBuilder sb = new StringBuilder( nChars );
+                        while ( sb.length() < nChars ) {
+                            sb.append( dis.readUTF() );
+                        }
+                        data = sb.toString();
+                    } else {
+                        data = dis.readUTF();
+                    }
+                    if ( -1 != dis.read() ) {
+                        data = null; // there shouldn't be more
                     }
+                } finally {
+                    in.close();
                 }
+            } catch ( IOException ioe ) {
+                Log.e( TAG, "deliver(): exception: " + ioe );
+                data = null;
             }
-        }
-        
-        private void processBuffer()
-        {
-            Log.d( TAG, "processBuffer()" );
-            if ( null != mBuffer ) {
+
+            // Either way it's done with: a resend starts over
+            ClipCache.get( context ).remove( mSum );
+            if ( null == data || ! mSum.equals( digestToStr( digest.digest() ) ) ) {
+                Log.e( TAG, "checksum mismatch!!!!" );
             } else {
-                Log.e( TAG, "processBuffer(): nothing to process" );
+                Log.d( TAG, "checksums match! We got it!!! (%d chars)", data.length() );
+                sReceiveCallbacks.onClipReceived( context, mimeType, label, data );
             }
         }
     }
 
     static class FileReceiver extends MultiPartReceiver {
+        // How long a response waits on a scan that's not done
+        private static final long SCAN_WAIT_MS = 50;
+
         private FileStore mFileStore;
         private String mFileName;
-
-        private FileReceiver( Context context, ByteArrayInputStream bais )
+        // OPT_DELTA: the signatures, then the thread matching them against
+        // the old copy. Until it's done only it touches mFileStore.
+        private Delta.Matcher mMatcher;
+        private Thread mScanner;
+        private volatile boolean mScanDone;
+        private boolean mDone;
+
+        private FileReceiver( Context context, byte version, ByteArrayInputStream bais )
         {
-            super( context, bais );
+            super( context, version, bais );
             try {
                 mFileName = readString( bais );
             } catch ( IOException ioe ) {
@@ -660,47 +2055,356 @@ class NFCUtils {
             Log.d( TAG, "read file name: %s", mFileName );
         }
 
+        private FileReceiver( Context context, byte version, long eventualSize,
+                              int maxPacketLen, String sum, String name )
+        {
+            super( context, version, eventualSize, maxPacketLen, sum );
+            mFileName = name;
+        }
+
+        boolean isDone() { return mDone; }
+
         @Override
         byte[] receiveFirst()
         {
             mFileStore = FileStore.getFor( context(), mSum, mFileName,
                                            mMaxPacketLen, mEventualSize );
+            if ( 0 != (mOptions & OPT_DELTA) ) {
+                // A partial transfer is better resumed than redone
+                if ( 0 < mFileStore.getNBytesReceived() ) {
+                    mOptions &= ~OPT_DELTA;
+                } else {
+                    mMatcher = new Delta.Matcher( getOldCopy(), mEventualSize,
+                                                  mMaxPacketLen );
+                }
+            }
             return super.receiveFirst();
         }
 
         @Override
-        void writeRequest( ByteArrayOutputStream baos ) throws IOException
+        long getNBytesReceived()
+        {
+            return inDelta() ? 0 : mFileStore.getNBytesReceived();
+        }
+
+        @Override
+        int getNextPacketSought()
+        {
+            int result;
+            if ( !inDelta() ) {
+                result = mFileStore.getNextPacketSought();
+            } else if ( !mMatcher.haveAll() ) {
+                result = -1 - mMatcher.firstMissing();
+            } else {
+                // Scanning. Rather than have the sender poll flat out, give
+                // it a moment. The next APDU picks up the result.
+                try {
+                    mScanner.join( SCAN_WAIT_MS );
+                } catch ( InterruptedException ie ) {
+                    Log.e( TAG, "getNextPacketSought(): %s", ie );
+                }
+                result = -1 - mMatcher.getNGroups();
+            }
+            return result;
+        }
+
+        // FileStore takes packets in any order, so ask for only the missing
+        // ones
+        @Override
+        boolean isWanted( int packetNo )
+        {
+            return packetNo >= mNextPacket && mFileStore.isMissing( packetNo );
+        }
+
+        @Override
+        boolean isInWindow( int offset )
         {
-            write( baos, mFileStore.getNBytesReceived() );
-            mNextPacket = mFileStore.getNextPacketSought() ;
-            // Log.d( TAG, "writeRequest(): mNextPacket now %d", mNextPacket );
-            Assert.assertTrue( mNextPacket >= 0 );
-            write( baos, mNextPacket );
+            return null != mMatcher ? mMatcher.isMissing( -1 - mNextPacket + offset )
+                : super.isInWindow( offset );
         }
 
         @Override
-        void store( int packetNo, byte[] packet ) throws IOException
+        boolean canStore( int packetNo )
         {
-            mFileStore.store( packetNo, packet );
+            return !inDelta() && mFileStore.isMissing( packetNo );
+        }
+
+        @Override
+        byte supportedOptions()
+        {
+            byte result = (byte)(super.supportedOptions() | OPT_CHUNK_HASHES);
+            if ( Delta.Matcher.usable( getOldCopy(), mEventualSize ) ) {
+                result |= OPT_DELTA;
+            }
+            return result;
+        }
+
+        // Where a file by this name would have been saved before
+        private File getOldCopy()
+        {
+            return new File( ClipFragment.getFilesDir(), mFileName );
+        }
+
+        @Override
+        void storeSignatures( int group, byte[] buf, int offset, int len )
+        {
+            if ( null != mMatcher && null == mScanner ) {
+                mMatcher.addGroup( group, buf, offset, len );
+                if ( mMatcher.haveAll() ) {
+                    startScan();
+                }
+            }
+        }
+
+        private void startScan()
+        {
+            mScanner = new Thread( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mMatcher.scan( mFileStore );
+                        } catch ( IOException | InterruptedException ex ) {
+                            Log.e( TAG, "scan(): %s", ex );
+                        } finally {
+                            mScanDone = true;
+                        }
+                    }
+                } );
+            mScanner.start();
+        }
+
+        // Whether signatures are still wanted or being matched
+        private boolean inDelta()
+        {
+            return null != mMatcher;
+        }
+
+        // The one place a finished scan hands mFileStore back. What it found
+        // is then checked with the APDU's packets, which matters when the
+        // old copy had every packet and none will come.
+        @Override
+        byte[] receive( byte[] apdu )
+        {
+            if ( null != mScanner && mScanDone ) {
+                mMatcher = null;
+                mScanner = null;
+            }
+            return super.receive( apdu );
+        }
+
+        @Override
+        void storeChunkHash( int chunk, byte[] buf, int offset, int len )
+        {
+            mFileStore.setChunkHash( chunk, Arrays.copyOfRange( buf, offset, offset + len ) );
+        }
+
+        @Override
+        void onResponseSent()
+        {
+            if ( null != mFileStore && !inDelta() ) {
+                mFileStore.verifyChunks();
+                mFileStore.syncIfDue();
+                if ( !mDone ) {
+                    SideEffects.progress( context(), mFileName,
+                                          mFileStore.getNBytesReceived(), mEventualSize );
+                }
+            }
+        }
+
+        @Override
+        void close()
+        {
+            super.close();
+            SideEffects.endProgress( context() );
+            if ( null != mScanner ) {
+                mScanner.interrupt();
+                try {
+                    mScanner.join();
+                } catch ( InterruptedException ie ) {
+                    Log.e( TAG, "close(): %s", ie );
+                }
+            }
+            if ( null == mFileStore ) {
+                // never got started
+            } else if ( mDone ) {
+                mFileStore.close();
+            } else {
+                // Likely the phones just slipped apart
+                mFileStore.park();
+            }
+        }
+
+        @Override
+        void store( int packetNo, byte[] buf, int offset, int len )
+        {
+            mFileStore.store( packetNo, buf, offset, len );
         }
 
         @Override
         void checkFinished()
         {
-            Assert.assertTrue( mFileStore.getNBytesReceived() <= mEventualSize );
-            if ( mFileStore.getNBytesReceived() == mEventualSize ) {
-                if ( mFileStore.checkSum() ) {
-                    Log.d( TAG, "file checksums match! We got it!!!" );
-                    Notify.postGotFile( context(), mFileName, mSum );
+            // While matching, only the scanner touches mFileStore
+            if ( !inDelta() ) {
+                Assert.assertTrue( mFileStore.getNBytesReceived() <= mEventualSize );
+                if ( mFileStore.getNBytesReceived() == mEventualSize ) {
+                    if ( mFileStore.checkSum() ) {
+                        Log.d( TAG, "file checksums match! We got it!!!" );
+                        mDone = true;
+                        final Context context = context();
+                        SideEffects.endProgress( context );
+                        SideEffects.afterResponse( new Runnable() {
+                                @Override
+                                public void run() {
+                                    sReceiveCallbacks.onFileReceived( context, mFileName, mSum );
+                                }
+                            } );
+                    }
                 }
             }
         }
     }
 
+    // Receives the files of a BATCH one at a time, each with a FileReceiver
+    // of its own. Files already here, whole, are skipped, and any partly
+    // here are picked up where they left off. Responses are the current
+    // FileReceiver's, followed by its file's index.
+    static class BatchReceiver extends Receiver {
+        private Context mContext;
+        private byte mVersion;
+        private int mOffered;
+        private int mMaxPacketLen;
+        private long[] mLens;
+        private String[] mSums;
+        private String[] mNames;
+        private boolean[] mDone;
+        private int mCur;
+        private FileReceiver mReceiver;
+        private ByteBuffer mResponse;
+
+        private BatchReceiver( Context context, byte version, ByteArrayInputStream bais )
+            throws IOException
+        {
+            mContext = context;
+            mVersion = version;
+            mMaxPacketLen = readInt( bais );
+            int count = readInt( bais );
+            mLens = new long[count];
+            mSums = new String[count];
+            mNames = new String[count];
+            mDone = new boolean[count];
+            for ( int ii = 0; ii < count; ++ii ) {
+                mLens[ii] = readSize( bais );
+                mSums[ii] = readString( bais );
+                mNames[ii] = readString( bais );
+            }
+            mOffered = bais.read();
+            Log.d( TAG, "BatchReceiver(): %d files", count );
+        }
+
+        @Override
+        byte[] receiveFirst()
+        {
+            return withIndex( nextFile() );
+        }
+
+        @Override
+        byte[] receive( byte[] apdu )
+        {
+            byte[] result = NFCCardService.STATUS_FAILED;
+            if ( null != mReceiver ) {
+                result = mReceiver.receive( apdu );
+                if ( mReceiver.isDone() ) {
+                    mDone[mCur] = true;
+                    result = nextFile();
+                }
+            }
+            return withIndex( result );
+        }
+
+        @Override
+        void onResponseSent()
+        {
+            if ( null != mReceiver ) {
+                mReceiver.onResponseSent();
+            }
+        }
+
+        @Override
+        void close()
+        {
+            if ( null != mReceiver ) {
+                mReceiver.close();
+                mReceiver = null;
+            }
+        }
+
+        // Move on to the first file not yet here, returning its receiver's
+        // first response; or if there's none, one saying so
+        private byte[] nextFile()
+        {
+            close();
+            byte[] result = null;
+            for ( mCur = 0; mCur < mLens.length; ++mCur ) {
+                if ( !mDone[mCur] && FileStore.isComplete( mContext, mSums[mCur], mLens[mCur] ) ) {
+                    mDone[mCur] = true;
+                }
+                if ( !mDone[mCur] ) {
+                    mReceiver = new FileReceiver( mContext, mVersion, mLens[mCur],
+                                                  mMaxPacketLen, mSums[mCur], mNames[mCur] );
+                    mReceiver.setOptions( mOffered );
+                    result = mReceiver.receiveFirst();
+                    if ( !mReceiver.isDone() ) {
+                        break;
+                    }
+                    // Was all here, just not checked
+                    mDone[mCur] = true;
+                    close();
+                }
+            }
+
+            if ( null == mReceiver ) {
+                Log.d( TAG, "nextFile(): all %d files received", mLens.length );
+                result = ByteBuffer.allocate( RESPONSE_LEN )
+                    .put( NFCCardService.STATUS_SUCCESS )
+                    .array();
+            }
+            return result;
+        }
+
+        // Failures go back as they are
+        private byte[] withIndex( byte[] response )
+        {
+            byte[] result = response;
+            if ( startsWith( response, NFCCardService.STATUS_SUCCESS ) ) {
+                int len = response.length + 2;
+                if ( null == mResponse || mResponse.capacity() != len ) {
+                    mResponse = ByteBuffer.allocate( len );
+                }
+                mResponse.clear();
+                mResponse.put( response );
+                mResponse.putShort( (short)mCur );
+                result = mResponse.array();
+            }
+            return result;
+        }
+    } // class BatchReceiver
+
+    // Whether apdu is a first one, as a sender with more to offer sends
+    // over a link it's already used
+    static boolean isFirst( byte[] apdu )
+    {
+        byte[] aid = hexStr2ba( BuildConfig.NFC_AID );
+        int aidAt = HEADER.length + 1;
+        return startsWith( apdu, HEADER ) && aidAt + aid.length <= apdu.length
+            && aid.length == apdu[HEADER.length]
+            && Arrays.equals( aid, Arrays.copyOfRange( apdu, aidAt, aidAt + aid.length ) );
+    }
+
     static Receiver makeReceiver( Context context, byte[] apdu ) throws Exception
     {
         // Log.d( TAG, "makeReceiver(%s)", hexDump(apdu) );
         Receiver result = null;
+        MultiPartReceiver receiver = null;
         ByteArrayInputStream bais = new ByteArrayInputStream( apdu );
         byte[] header = new byte[NFCUtils.HEADER.length];
         bais.read( header );
@@ -716,22 +2420,32 @@ class NFCUtils {
         }
         byte minVers = (byte)bais.read();
         byte maxVers = (byte)bais.read();
-        if ( NFCUtils.VERSION_1 != minVers && NFCUtils.VERSION_1 != maxVers ) {
+        if ( minVers > VERSION_MAX || maxVers < VERSION_1 || minVers > maxVers ) {
             throw new Exception("bad version codes: " + minVers + ", " + maxVers);
         }
+        // Highest we both speak
+        byte version = maxVers < VERSION_MAX ? maxVers : VERSION_MAX;
 
         // Get this far? We're connected. Save the rest for later
         byte cmd = (byte)bais.read();
         switch ( cmd ) {
         case CLIP:
-            result = new ClipReceiver( context, bais );
+        case CHUNKED_CLIP:
+            receiver = new ClipReceiver( context, version, bais, CHUNKED_CLIP == cmd );
             break;
         case FILE:
-            result = new FileReceiver( context, bais );
+            receiver = new FileReceiver( context, version, bais );
+            break;
+        case BATCH:
+            result = new BatchReceiver( context, version, bais );
             break;
         default:
             Assert.fail();
         }
+        if ( null != receiver ) {
+            receiver.readOptions( bais );
+            result = receiver;
+        }
         return result;
     }
 
@@ -739,22 +2453,53 @@ class NFCUtils {
     {
         String result = null;
         try {
-            FileInputStream fis =  new FileInputStream( input );
-            MessageDigest digest = MessageDigest.getInstance("MD5");
+            FileChannel channel = new FileInputStream( input ).getChannel();
+            try {
+                result = getMd5Sum( channel, channel.size() );
+            } finally {
+                channel.close();
+            }
+        } catch ( IOException ioe ) {
+            Log.e( TAG, "getMd5Sum(): %s", ioe );
+        }
+        return result;
+    }
 
-            byte[] buffer = new byte[1024];
-            for ( ; ; ) {
-                int numRead = fis.read( buffer );
-                if ( numRead < 0 ) {
-                    break;
-                }
-                digest.update( buffer, 0, numRead );
+    // Positional reads, so the channel can be shared with other readers
+    static String getMd5Sum( FileChannel channel, long len ) throws IOException
+    {
+        MessageDigest digest = newMd5();
+        updateDigest( digest, channel, 0, len );
+        return digestToStr( digest.digest() );
+    }
+
+    // Feed bytes [start, end) of channel to digest
+    static void updateDigest( MessageDigest digest, FileChannel channel,
+                              long start, long end ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( (int)Math.min( DIGEST_CHUNK, end - start ) );
+        while ( start < end ) {
+            buffer.clear();
+            if ( buffer.remaining() > end - start ) {
+                buffer.limit( (int)(end - start) );
+            }
+            int nRead = channel.read( buffer, start );
+            if ( nRead < 0 ) {
+                throw new EOFException();
             }
+            digest.update( buffer.array(), 0, nRead );
+            start += nRead;
+        }
+    }
 
-            fis.close();
-            result = digestToStr( digest.digest() );
-        } catch ( IOException | java.security.NoSuchAlgorithmException ioe ) {
-            Log.e( TAG, "processBuffer(): exception: " + ioe );
+    static MessageDigest newMd5()
+    {
+        MessageDigest result = null;
+        try {
+            result = MessageDigest.getInstance( "MD5" );
+        } catch ( java.security.NoSuchAlgorithmException nsae ) {
+            Log.e( TAG, "newMd5(): %s", nsae );
+            Assert.fail();
         }
         return result;
     }
@@ -775,7 +2520,7 @@ class NFCUtils {
         return result;
     }
 
-    private static String digestToStr( byte[] digest )
+    static String digestToStr( byte[] digest )
     {
         BigInteger number = new BigInteger( 1, digest );
         String result = number.toString(16);
@@ -40,7 +40,7 @@ class Notify {
         String channelID  = getChannelID( context, nm );
 
         Intent intent = MainActivity.getSelfIntent( context );
-        PendingIntent pi = getPendingIntent( context, intent );
+        PendingIntent pi = getPendingIntent( context, intent, R.string.channel_desc );
 
         if ( 40 < data.length() ) {
             data = data.substring( 0, 40 );
@@ -59,6 +59,9 @@ class Notify {
         nm.notify( R.string.channel_desc, notification );
     }
 
+    // One per file, tagged with its sum, so a batch's don't replace each
+    // other. Each gets its own PendingIntent too: they'd otherwise share
+    // the first one's extras.
     static void postGotFile( Context context, String name, String sum )
     {
         NotificationManager nm = (NotificationManager)
@@ -66,7 +69,7 @@ class Notify {
         String channelID  = getChannelID( context, nm );
 
         Intent intent = MainActivity.getGotFileIntent( context, name, sum );
-        PendingIntent pi = getPendingIntent( context, intent );
+        PendingIntent pi = getPendingIntent( context, intent, sum.hashCode() );
 
         NotificationCompat.Builder builder =
             new NotificationCompat.Builder( context, channelID )
@@ -78,7 +81,78 @@ class Notify {
             ;
 
         Notification notification = builder.build();
-        nm.notify( R.string.notify_gotfile_title, notification );
+        nm.notify( sum, R.string.notify_gotfile_title, notification );
+    }
+
+    // An incoming file's progress, until cancelReceiving()
+    static void postReceiving( Context context, String name, int percent )
+    {
+        NotificationManager nm = (NotificationManager)
+            context.getSystemService( Context.NOTIFICATION_SERVICE );
+        String channelID  = getChannelID( context, nm );
+
+        NotificationCompat.Builder builder =
+            new NotificationCompat.Builder( context, channelID )
+            .setSmallIcon( R.drawable.ic_launcher_background )
+            .setOngoing( true )
+            .setOnlyAlertOnce( true )
+            .setProgress( 100, percent, false )
+            .setContentTitle( context.getString( R.string.notify_receiving_title ) )
+            .setContentText( name )
+            ;
+
+        Notification notification = builder.build();
+        nm.notify( R.string.notify_receiving_title, notification );
+    }
+
+    static void cancelReceiving( Context context )
+    {
+        NotificationManager nm = (NotificationManager)
+            context.getSystemService( Context.NOTIFICATION_SERVICE );
+        nm.cancel( R.string.notify_receiving_title );
+    }
+
+    // Replaced by postSaved() once the save's done
+    static void postSaving( Context context, String name, int percent )
+    {
+        NotificationManager nm = (NotificationManager)
+            context.getSystemService( Context.NOTIFICATION_SERVICE );
+        String channelID  = getChannelID( context, nm );
+
+        NotificationCompat.Builder builder =
+            new NotificationCompat.Builder( context, channelID )
+            .setSmallIcon( R.drawable.ic_launcher_background )
+            .setOngoing( true )
+            .setOnlyAlertOnce( true )
+            .setProgress( 100, percent, false )
+            .setContentTitle( context.getString( R.string.notify_saving_title ) )
+            .setContentText( name )
+            ;
+
+        Notification notification = builder.build();
+        nm.notify( R.string.notify_saving_title, notification );
+    }
+
+    static void postSaved( Context context, String name, boolean succeeded )
+    {
+        NotificationManager nm = (NotificationManager)
+            context.getSystemService( Context.NOTIFICATION_SERVICE );
+        String channelID  = getChannelID( context, nm );
+
+        int title = succeeded ? R.string.notify_saved_title
+            : R.string.notify_save_failed_title;
+        int fmt = succeeded ? R.string.notify_saved_body_fmt
+            : R.string.notify_save_failed_body_fmt;
+        NotificationCompat.Builder builder =
+            new NotificationCompat.Builder( context, channelID )
+            .setSmallIcon( R.drawable.ic_launcher_background )
+            .setAutoCancel( true )
+            .setContentTitle( context.getString( title ) )
+            .setContentText( context.getString( fmt, name ) )
+            ;
+
+        Notification notification = builder.build();
+        nm.notify( R.string.notify_saving_title, notification );
     }
 
     private static String getChannelID( Context context, NotificationManager nm )
@@ -98,10 +172,11 @@ class Notify {
         return name;
     }
 
-    private static PendingIntent getPendingIntent( Context context, Intent intent )
+    private static PendingIntent getPendingIntent( Context context, Intent intent,
+                                                   int requestCode )
     {
         PendingIntent pi = PendingIntent
-            .getActivity( context, R.string.channel_desc, intent,
+            .getActivity( context, requestCode, intent,
                           PendingIntent.FLAG_ONE_SHOT );
         return pi;
     }
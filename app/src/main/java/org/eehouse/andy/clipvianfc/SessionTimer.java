@@ -0,0 +1,121 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Gives up on a send once TIMEOUT_MS pass without a connect or a
+// successful APDU. Those just note the time: the one pending check,
+// running on a thread shared by every send, reschedules itself until the
+// deadline's really reached, so nothing's allocated per APDU. Each
+// idle second is reported as progress toward the timeout.
+class SessionTimer {
+    private static final String TAG = SessionTimer.class.getSimpleName();
+    private static final long TIMEOUT_MS = 10 * 1000;
+    private static final long TICK_MS = 1000;
+
+    private static ScheduledExecutorService sExecutor;
+
+    private NFCUtils.Callbacks mCallbacks;
+    private Runnable mOnTimeout;
+    private volatile long mLastNanos;
+    private ScheduledFuture<?> mCheck;  // guarded by this
+    private boolean mCancelled;
+
+    private Runnable mCheckProc = new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        };
+
+    SessionTimer( NFCUtils.Callbacks callbacks, Runnable onTimeout )
+    {
+        mCallbacks = callbacks;
+        mOnTimeout = onTimeout;
+    }
+
+    synchronized void start()
+    {
+        touch();
+        schedule( TICK_MS );
+    }
+
+    // Progress was made; push the deadline back
+    void touch() { mLastNanos = System.nanoTime(); }
+
+    // The send's over; nothing more will fire
+    synchronized void cancel()
+    {
+        mCancelled = true;
+        if ( null != mCheck ) {
+            mCheck.cancel( false );
+            mCheck = null;
+        }
+    }
+
+    private void check()
+    {
+        long idle = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - mLastNanos );
+        boolean timedOut = false;
+        synchronized ( this ) {
+            if ( mCancelled ) {
+                // too late
+            } else if ( idle >= TIMEOUT_MS ) {
+                timedOut = true;
+                mCancelled = true;
+            } else {
+                // Wake at the next idle second, or the deadline
+                long next = idle < TICK_MS ? TICK_MS - idle : TICK_MS - idle % TICK_MS;
+                schedule( Math.min( next, TIMEOUT_MS - idle ) );
+            }
+        }
+
+        if ( timedOut ) {
+            Log.d( TAG, "check(): idle for %d ms; giving up", idle );
+            mOnTimeout.run();
+        } else if ( idle >= TICK_MS ) {
+            mCallbacks.onProgressMade( (int)(idle / TICK_MS), (int)(TIMEOUT_MS / TICK_MS) );
+        }
+    }
+
+    private void schedule( long delayMs )
+    {
+        mCheck = getExecutor().schedule( mCheckProc, delayMs, TimeUnit.MILLISECONDS );
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor()
+    {
+        if ( null == sExecutor ) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable runnable ) {
+                        Thread thread = new Thread( runnable, TAG );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        }
+        return sExecutor;
+    }
+}
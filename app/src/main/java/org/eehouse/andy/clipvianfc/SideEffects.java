@@ -0,0 +1,145 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// What receiving something leads to that the sender needn't wait for:
+// the clipboard, notifications. Work's queued while an APDU's handled and
+// handed to a background thread once its response has gone, so nothing
+// it does can delay one. Progress of an incoming file is only noted when
+// it's made; the notification's updated from the latest note, at most
+// every PROGRESS_MS.
+class SideEffects {
+    private static final String TAG = SideEffects.class.getSimpleName();
+    private static final long PROGRESS_MS = 333;
+
+    private static ScheduledExecutorService sExecutor;
+    private static List<Runnable> sPending = new ArrayList<>(); // guarded by itself
+
+    // Guarded by SideEffects.class
+    private static Context sContext;
+    private static String sName;    // null when there's nothing to show
+    private static long sCur;
+    private static long sTotal;
+    private static boolean sScheduled;
+    private static long sLastPostMs;
+
+    private static Runnable sProgressProc = new Runnable() {
+            @Override
+            public void run() {
+                postProgress();
+            }
+        };
+
+    // Run proc once the response now being built has been sent
+    static void afterResponse( Runnable proc )
+    {
+        synchronized ( sPending ) {
+            sPending.add( proc );
+        }
+    }
+
+    // The response is on its way: start on whatever's waited for it
+    static void onResponseSent()
+    {
+        List<Runnable> procs = null;
+        synchronized ( sPending ) {
+            if ( !sPending.isEmpty() ) {
+                procs = new ArrayList<>( sPending );
+                sPending.clear();
+            }
+        }
+        if ( null != procs ) {
+            for ( Runnable proc : procs ) {
+                getExecutor().execute( proc );
+            }
+        }
+    }
+
+    static synchronized void progress( Context context, String name, long cur, long total )
+    {
+        sContext = context;
+        sName = name;
+        sCur = cur;
+        sTotal = total;
+        if ( !sScheduled ) {
+            sScheduled = true;
+            long wait = sLastPostMs + PROGRESS_MS - System.currentTimeMillis();
+            getExecutor().schedule( sProgressProc, Math.max( 0, wait ),
+                                    TimeUnit.MILLISECONDS );
+        }
+    }
+
+    // The file's done, or won't be for now. Any update still to come is
+    // dropped, and the notification goes away in turn with other work.
+    static synchronized void endProgress( final Context context )
+    {
+        if ( null != sName ) {
+            sName = null;
+            getExecutor().execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        Notify.cancelReceiving( context );
+                    }
+                } );
+        }
+    }
+
+    private static void postProgress()
+    {
+        Context context;
+        String name;
+        int percent;
+        synchronized ( SideEffects.class ) {
+            sScheduled = false;
+            context = sContext;
+            name = sName;
+            percent = 0 < sTotal ? (int)(100 * sCur / sTotal) : 0;
+            sLastPostMs = System.currentTimeMillis();
+        }
+        if ( null != name ) {
+            Notify.postReceiving( context, name, percent );
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor()
+    {
+        if ( null == sExecutor ) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                    @Override
+                    public Thread newThread( Runnable runnable ) {
+                        Thread thread = new Thread( runnable, TAG );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,150 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+// Stand-ins for the pieces of the app the benchmarks can't use on a host
+// JVM: a Context that only knows its cache dir, do-nothing callbacks, and
+// Sender/Receiver subclasses that keep their data in memory.
+class BenchSupport {
+
+    static final NFCUtils.Callbacks NO_CALLBACKS = new NFCUtils.Callbacks() {
+            @Override
+            public void onSendEnabled() {}
+            @Override
+            public void onSendComplete( boolean succeeded ) {}
+            @Override
+            public void onProgressMade( int cur, int max ) {}
+        };
+
+    static final NFCUtils.ReceiveCallbacks NO_RECEIVE_CALLBACKS =
+        new NFCUtils.ReceiveCallbacks() {
+            @Override
+            public void onClipReceived( Context context, String mimeType,
+                                        String label, String data ) {}
+            @Override
+            public void onFileReceived( Context context, String name, String sum ) {}
+        };
+
+    static Context makeContext( final File cacheDir )
+    {
+        return new ContextWrapper( null ) {
+            @Override
+            public File getCacheDir() { return cacheDir; }
+
+            // Nothing (e.g. APDU sizes) is remembered between runs
+            @Override
+            public SharedPreferences getSharedPreferences( String name, int mode )
+            {
+                return null;
+            }
+        };
+    }
+
+    static byte[] randomBytes( int len, long seed )
+    {
+        byte[] result = new byte[len];
+        new Random( seed ).nextBytes( result );
+        return result;
+    }
+
+    static File makeTempDir( String prefix ) throws IOException
+    {
+        File dir = File.createTempFile( prefix, "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void deleteContents( File dir )
+    {
+        File[] files = dir.listFiles();
+        if ( null != files ) {
+            for ( File file : files ) {
+                file.delete();
+            }
+        }
+    }
+
+    // Sends from a byte array; no I/O, so only the framing is measured
+    static class ArraySender extends NFCUtils.Sender {
+        private byte[] mData;
+
+        ArraySender( byte[] data, int maxPacketLen )
+        {
+            super( null, NO_CALLBACKS );
+            mData = data;
+            mMaxPacketLen = maxPacketLen;
+            mNextPacket = 0;
+        }
+
+        @Override
+        byte[] completeFirst( ByteArrayOutputStream baos ) { return baos.toByteArray(); }
+
+        @Override
+        long getTotalToSend() { return mData.length; }
+
+        @Override
+        void getBytesFrom( long offset, byte[] outbuf, int outOffset, int len )
+        {
+            System.arraycopy( mData, (int)offset, outbuf, outOffset, len );
+        }
+    }
+
+    // Accepts every packet and forgets it, always asking for the same one
+    // next, so receive() can be called forever
+    static class NullReceiver extends NFCUtils.MultiPartReceiver {
+
+        NullReceiver( int eventualSize, int maxPacketLen ) throws IOException
+        {
+            super( null, NFCUtils.VERSION_1,
+                   new ByteArrayInputStream( header( eventualSize, maxPacketLen ) ) );
+        }
+
+        private static byte[] header( int eventualSize, int maxPacketLen ) throws IOException
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            NFCUtils.write( baos, eventualSize );
+            NFCUtils.write( baos, maxPacketLen );
+            NFCUtils.write( baos, "00000000000000000000000000000000" );
+            return baos.toByteArray();
+        }
+
+        @Override
+        long getNBytesReceived() { return 0; }
+
+        @Override
+        int getNextPacketSought() { return 0; }
+
+        @Override
+        void store( int packetNo, byte[] buf, int offset, int len ) {}
+
+        @Override
+        void checkFinished() {}
+    }
+}
@@ -0,0 +1,101 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// A whole file transfer, FileSender to FileReceiver, over a LoopbackLink.
+// Bytes per second is fileLen / the reported time.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackBenchmark {
+
+    @Param({"65536", "1048576"})
+    int fileLen;
+
+    @Param({"1024", "4096"})
+    int maxApduLen;
+
+    @Param({"0"})
+    long latencyMicros;
+
+    @Param({"0", "0.01"})
+    float dropRate;
+
+    private File mSrcDir;
+    private File mCacheDir;
+    private File mFile;
+    private Context mContext;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        NFCUtils.setReceiveCallbacks( BenchSupport.NO_RECEIVE_CALLBACKS );
+        mSrcDir = BenchSupport.makeTempDir( "src" );
+        mCacheDir = BenchSupport.makeTempDir( "cache" );
+        mContext = BenchSupport.makeContext( mCacheDir );
+
+        mFile = new File( mSrcDir, "payload.bin" );
+        FileOutputStream fos = new FileOutputStream( mFile );
+        fos.write( BenchSupport.randomBytes( fileLen, 3 ) );
+        fos.close();
+    }
+
+    // The receiver resumes from whatever's in its cache dir, so empty it
+    @TearDown(Level.Invocation)
+    public void clearCache()
+    {
+        BenchSupport.deleteContents( mCacheDir );
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        BenchSupport.deleteContents( mSrcDir );
+        mSrcDir.delete();
+        mCacheDir.delete();
+    }
+
+    @Benchmark
+    public int transfer()
+    {
+        NFCUtils.FileSender sender =
+            new NFCUtils.FileSender( null, BenchSupport.NO_CALLBACKS, mFile );
+        LoopbackLink link = new LoopbackLink( mContext, maxApduLen, latencyMicros,
+                                              dropRate, 0 );
+        return link.drive( sender, Integer.MAX_VALUE );
+    }
+}
@@ -0,0 +1,156 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.eehouse.andy.clipvianfc;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// An in-process stand-in for two phones: a Transceiver that hands each APDU
+// straight to a Receiver the way NFCCardService does, with optional latency,
+// a cap on APDU length and random link drops. Lets the protocol be run (and
+// timed) on a plain JVM. It's in the app's package, but kept here with the
+// benchmarks so it isn't shipped.
+class LoopbackLink implements NFCUtils.Transceiver {
+    private static final String TAG = LoopbackLink.class.getSimpleName();
+
+    private Context mContext;
+    private int mMaxLen;
+    private long mLatencyNanos;
+    private float mDropRate;
+    private Random mRandom;
+    private NFCUtils.Receiver mReceiver;
+    private boolean mConnected;
+    private int mNApdus;
+    private int mNDrops;
+
+    LoopbackLink( Context context, int maxLen, long latencyMicros,
+                  float dropRate, long seed )
+    {
+        mContext = context;
+        mMaxLen = maxLen;
+        mLatencyNanos = TimeUnit.MICROSECONDS.toNanos( latencyMicros );
+        mDropRate = dropRate;
+        mRandom = new Random( seed );
+    }
+
+    // Like touching the phones together again after they've separated
+    void connect()
+    {
+        mConnected = true;
+    }
+
+    // Keep "tapping" until the sender's done or maxTaps is reached. Returns
+    // the number of taps it took.
+    int drive( NFCUtils.Sender sender, int maxTaps )
+    {
+        int taps = 0;
+        while ( taps < maxTaps && !sender.succeeded() ) {
+            ++taps;
+            connect();
+            sender.runSession( this );
+        }
+        return taps;
+    }
+
+    int getNApdus() { return mNApdus; }
+    int getNDrops() { return mNDrops; }
+
+    @Override
+    public byte[] transceive( byte[] data ) throws IOException
+    {
+        if ( !mConnected ) {
+            throw new IOException( "not connected" );
+        } else if ( data.length > mMaxLen ) {
+            throw new IOException( "apdu too long: " + data.length );
+        }
+
+        if ( 0 < mLatencyNanos ) {
+            LockSupport.parkNanos( mLatencyNanos );
+        }
+
+        if ( 0 < mDropRate && mRandom.nextFloat() < mDropRate ) {
+            ++mNDrops;
+            // Half the time the receiver got the APDU and only the response
+            // was lost
+            if ( mRandom.nextBoolean() ) {
+                process( data );
+                SideEffects.onResponseSent();
+            }
+            deactivate();
+            throw new IOException( "link dropped" );
+        }
+
+        ++mNApdus;
+        byte[] result = process( data );
+        // NFCCardService does this after sending the response
+        if ( null != mReceiver ) {
+            mReceiver.onResponseSent();
+        }
+        SideEffects.onResponseSent();
+        return result;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() { return mMaxLen; }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() { return true; }
+
+    @Override
+    public void close()
+    {
+        deactivate();
+    }
+
+    // Mirrors NFCCardService.processCommandApdu()
+    private byte[] process( byte[] apdu )
+    {
+        byte[] result = NFCCardService.STATUS_FAILED;
+        try {
+            if ( null != mReceiver && NFCUtils.isFirst( apdu ) ) {
+                mReceiver.close();
+                mReceiver = null;
+            }
+            if ( null == mReceiver ) {
+                mReceiver = NFCUtils.makeReceiver( mContext, apdu );
+                result = mReceiver.receiveFirst();
+            } else {
+                result = mReceiver.receive( apdu );
+            }
+        } catch ( Exception ex ) {
+            Log.e( TAG, "process() got %s", ex );
+        }
+        return result;
+    }
+
+    // Mirrors NFCCardService.onDeactivated()
+    private void deactivate()
+    {
+        mConnected = false;
+        if ( null != mReceiver ) {
+            mReceiver.close();
+            mReceiver = null;
+        }
+    }
+}
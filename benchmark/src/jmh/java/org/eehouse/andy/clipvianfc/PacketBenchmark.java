@@ -0,0 +1,121 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+// Per-packet cost of the framing on each side of the link: what the sender
+// does to build an APDU and read the reply, and what the receiver does to
+// check an APDU and build the reply.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketBenchmark {
+    private static final int N_PACKETS = 16;
+
+    @Param({"64", "128", "256", "512", "1024"})
+    int packetLen;
+
+    private BenchSupport.ArraySender mSender;
+    private BenchSupport.NullReceiver mReceiver;
+    private byte[] mPacket;
+    private byte[] mApdu;
+    private byte[] mResponse;
+    // VERSION_3's packet check: the fallback for devices older than API 26.
+    // The platform's is in PlatformCrc.
+    private Checksum mTableCrc = new Crc32c();
+
+    // The host JVM's java.util.zip.CRC32C. That's Java 9+, and these build
+    // for 8, so it's made by name; where there's none its case fails setup
+    // and the rest run.
+    @State(Scope.Thread)
+    public static class PlatformCrc {
+        Checksum mCrc;
+
+        @Setup
+        public void setup() throws ReflectiveOperationException
+        {
+            try {
+                mCrc = (Checksum)Class.forName( "java.util.zip.CRC32C" )
+                    .getDeclaredConstructor().newInstance();
+            } catch ( ClassNotFoundException cnfe ) {
+                throw new UnsupportedOperationException( "no CRC32C before Java 9" );
+            }
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        int total = N_PACKETS * packetLen;
+        mSender = new BenchSupport.ArraySender( BenchSupport.randomBytes( total, 1 ),
+                                                packetLen );
+        mReceiver = new BenchSupport.NullReceiver( total, packetLen );
+        mPacket = BenchSupport.randomBytes( packetLen, 2 );
+        mApdu = mSender.makeNext();
+        mResponse = mReceiver.receive( mApdu );
+    }
+
+    @Benchmark
+    public byte[] makeNext()
+    {
+        return mSender.makeNext();
+    }
+
+    @Benchmark
+    public int hashPacket()
+    {
+        return NFCUtils.hashOf( mPacket, 0, mPacket.length );
+    }
+
+    @Benchmark
+    public int crc32cPlatform( PlatformCrc platform )
+    {
+        return NFCUtils.crcOf( platform.mCrc, mPacket, 0, mPacket.length );
+    }
+
+    @Benchmark
+    public int crc32cTable()
+    {
+        return NFCUtils.crcOf( mTableCrc, mPacket, 0, mPacket.length );
+    }
+
+    @Benchmark
+    public byte[] receive()
+    {
+        return mReceiver.receive( mApdu );
+    }
+
+    @Benchmark
+    public boolean processResponse()
+    {
+        return mSender.processResponse( mResponse );
+    }
+}
@@ -0,0 +1,85 @@
+/* -*- compile-command: "find-and-gradle.sh inDeb"; -*- */
+/*
+ * Copyright 2020 by Eric House (xwords@eehouse.org).  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.eehouse.andy.clipvianfc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The NFCUtils.write()/readInt()/readString() helpers used to build and
+// parse every header and response
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializationBenchmark {
+    private static final String SUM = "0123456789abcdef0123456789abcdef";
+
+    private ByteArrayOutputStream mBaos;
+    private byte[] mIntBytes;
+    private byte[] mStringBytes;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        mBaos = new ByteArrayOutputStream();
+        NFCUtils.write( mBaos, 0x12345678 );
+        mIntBytes = mBaos.toByteArray();
+
+        mBaos.reset();
+        NFCUtils.write( mBaos, SUM );
+        mStringBytes = mBaos.toByteArray();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeInt() throws IOException
+    {
+        mBaos.reset();
+        NFCUtils.write( mBaos, 0x12345678 );
+        return mBaos;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeString() throws IOException
+    {
+        mBaos.reset();
+        NFCUtils.write( mBaos, SUM );
+        return mBaos;
+    }
+
+    @Benchmark
+    public int readInt() throws IOException
+    {
+        return NFCUtils.readInt( new ByteArrayInputStream( mIntBytes ) );
+    }
+
+    @Benchmark
+    public String readString() throws IOException
+    {
+        return NFCUtils.readString( new ByteArrayInputStream( mStringBytes ) );
+    }
+}